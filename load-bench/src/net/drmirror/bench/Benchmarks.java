@@ -0,0 +1,29 @@
+package net.drmirror.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate
+ * per operation is reported along with the time.  The usual JMH options
+ * may be given, such as a regular expression for the benchmarks to run:
+ *
+ *   mvn package       (in the top directory, which builds load as well)
+ *   java -jar load-bench/target/benchmarks.jar MasterParser
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Benchmarks {
+
+    public static void main (String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+
+}
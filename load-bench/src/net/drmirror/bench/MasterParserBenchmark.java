@@ -0,0 +1,66 @@
+package net.drmirror.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+
+import net.drmirror.Parser;
+
+/**
+ * Parser.MasterParser.parse() on the additional data of records with
+ * few, a typical number of, or many sections, the way that RecordParser
+ * calls it.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MasterParserBenchmark {
+
+    @Param({"few", "typical", "many"})
+    public String sections;
+
+    private Parser.MasterParser parser;
+    private String[] data;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        parser = new Parser.MasterParser();
+        List<String> lines = sections.equals("few")     ? Sample.linesWithSections(0, 3)
+                           : sections.equals("typical") ? Sample.linesWithSections(4, 15)
+                           : Sample.linesWithSections(16, Integer.MAX_VALUE);
+        data = new String[lines.size()];
+        for (int i=0; i<data.length; i++) {
+            // RecordParser passes the data with the "ADD" marker, starting after it
+            data[i] = lines.get(i).substring(Sample.ADD_DATA - 3);
+        }
+    }
+
+    @Benchmark
+    public BasicDBObject parse() {
+        String d = data[next];
+        if (++next == data.length) next = 0;
+        BasicDBObject result = new BasicDBObject();
+        parser.parse(d, 3, result);
+        return result;
+    }
+
+}
@@ -0,0 +1,58 @@
+package net.drmirror.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+
+import net.drmirror.RecordParser;
+
+/**
+ * RecordParser.parseRecord() on all the records of the sample, one
+ * record per operation.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordParserBenchmark {
+
+    private RecordParser parser;
+    private ByteBuffer[] lines;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        parser = new RecordParser();
+        List<String> sample = Sample.lines();
+        lines = new ByteBuffer[sample.size()];
+        for (int i=0; i<lines.length; i++) {
+            lines[i] = ByteBuffer.wrap(sample.get(i).getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Benchmark
+    public BasicDBObject parseRecord() {
+        ByteBuffer b = lines[next];
+        if (++next == lines.length) next = 0;
+        return parser.parseRecord(b, 0, b.limit());
+    }
+
+}
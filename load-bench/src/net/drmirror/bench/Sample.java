@@ -0,0 +1,84 @@
+package net.drmirror.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import net.drmirror.Parser;
+
+/**
+ * The records that the benchmarks work on, from resources/isd-sample.txt.
+ * The sample has records of four stations with few (2), a typical number
+ * of (9) and many (27) additional sections.  It is synthetic, generated
+ * from the block definitions of the Parser, so the sections cover the
+ * blocks evenly rather than in the mix that real data has.  Its numbers
+ * are good for comparing versions of the code with each other, not for
+ * predicting the throughput of a load.
+ *
+ * To run on real data instead, pass a data file, compressed or not, to
+ * the forked JVMs:
+ *
+ *   java -jar load-bench/target/benchmarks.jar -jvmArgsAppend -Dsample=/data/raw/2013/010230-99999-2013.gz
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Sample {
+
+    public static final String RESOURCE = "/isd-sample.txt";
+
+    // where the additional data starts in a record, after the "ADD" marker
+    public static final int ADD_DATA = 108;
+
+    public static List<String> lines() {
+        List<String> result = new ArrayList<String>();
+        try {
+            InputStream in = open();
+            BufferedReader r = new BufferedReader (new InputStreamReader (in, StandardCharsets.ISO_8859_1));
+            try {
+                while (true) {
+                    String line = r.readLine();
+                    if (line == null) break;
+                    result.add(line);
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return result;
+    }
+
+    private static InputStream open() throws IOException {
+        String file = System.getProperty("sample");
+        if (file != null) {
+            InputStream in = new FileInputStream(file);
+            return file.endsWith(".gz") ? new GZIPInputStream(in, 64 * 1024) : in;
+        }
+        InputStream in = Sample.class.getResourceAsStream(RESOURCE);
+        if (in == null) throw new IOException(RESOURCE + " not found");
+        return in;
+    }
+
+    /**
+     * Returns the lines that have at least min and at most max additional
+     * sections.
+     */
+    public static List<String> linesWithSections (int min, int max) {
+        Parser.MasterParser parser = new Parser.MasterParser();
+        List<String> result = new ArrayList<String>();
+        for (String line : lines()) {
+            int n = line.length() > ADD_DATA ? parser.sectionIndex(line.substring(ADD_DATA), 0).length : 0;
+            if (n >= min && n <= max) result.add(line);
+        }
+        if (result.isEmpty()) throw new RuntimeException("no lines with " + min + " to " + max + " sections");
+        return result;
+    }
+
+}
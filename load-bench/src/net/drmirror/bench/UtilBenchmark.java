@@ -0,0 +1,92 @@
+package net.drmirror.bench;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+
+import net.drmirror.Util;
+
+/**
+ * The helpers in Util, on the fields of the sample records.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    private String[] usaf, wban, lat, lon, temp, date;
+    private int[] latValue, lonValue;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        List<String> lines = Sample.lines();
+        int n = lines.size();
+        usaf = new String[n];
+        wban = new String[n];
+        lat = new String[n];
+        lon = new String[n];
+        temp = new String[n];
+        date = new String[n];
+        latValue = new int[n];
+        lonValue = new int[n];
+        for (int i=0; i<n; i++) {
+            String line = lines.get(i);
+            usaf[i] = line.substring(4, 10);
+            wban[i] = line.substring(10, 15);
+            date[i] = line.substring(15, 23);
+            lat[i] = line.substring(28, 34);
+            lon[i] = line.substring(34, 41);
+            temp[i] = line.substring(87, 92);
+            latValue[i] = Integer.parseInt(lat[i]);
+            lonValue[i] = Integer.parseInt(lon[i]);
+        }
+    }
+
+    private int next() {
+        int i = next;
+        if (++next == usaf.length) next = 0;
+        return i;
+    }
+
+    @Benchmark
+    public Integer parseInt() {
+        return Util.parseInt(temp[next()]);
+    }
+
+    @Benchmark
+    public Date parseDate() {
+        return Util.parseDate(date[next()]);
+    }
+
+    @Benchmark
+    public String generateStationId() {
+        int i = next();
+        return Util.generateStationId(usaf[i], wban[i], lat[i], lon[i]);
+    }
+
+    @Benchmark
+    public BasicDBObject createPoint() {
+        int i = next();
+        return Util.createPoint(lonValue[i], latValue[i]);
+    }
+
+}
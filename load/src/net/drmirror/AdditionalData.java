@@ -0,0 +1,81 @@
+package net.drmirror;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Access to the additional sections of a record that was loaded with
+ * --lazyAdd.  Such a record keeps the text after the "ADD" marker as
+ * it is, plus the positions of the known sections within it, and any
+ * block is only parsed when it is asked for, with the same Parser
+ * definitions that are used for loading.
+ *
+ *   AdditionalData add = new AdditionalData(record);
+ *   Object sky = add.get("skyCoverLayer");
+ *
+ * returns what the record would have held in the "skyCoverLayer"
+ * field if it had been loaded normally.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class AdditionalData {
+
+    public static final String DATA  = "additionalData";
+    public static final String INDEX = "additionalDataIndex";
+
+    // only the parse methods are used, which don't keep any state
+    private static final Parser.MasterParser parser = new Parser.MasterParser();
+
+    private String data;
+    private int[] index;
+
+    public AdditionalData (DBObject record) {
+        data = (String)record.get(DATA);
+        if (data == null) {
+            data = "";
+            index = new int[0];
+        } else {
+            index = toIntArray(record.get(INDEX));
+        }
+    }
+
+    /**
+     * Returns the markers of the sections, like the "sections" field of
+     * a normally loaded record.
+     */
+    public List<String> sections() {
+        List<String> result = new ArrayList<String>(index.length);
+        for (int i : index) result.add(data.substring(i, i+3));
+        return result;
+    }
+
+    /**
+     * Parses the blocks for the given field name and returns them as a
+     * document, or a list of documents for blocks that may occur several
+     * times.  Returns null if the record has no such blocks.
+     */
+    public Object get (String fieldName) {
+        BasicDBObject d = new BasicDBObject();
+        return parser.parseField(data, index, fieldName, d) ? d.get(fieldName) : null;
+    }
+
+    /**
+     * Parses all the sections and appends them to d, so that it looks as
+     * if it had been loaded normally.
+     */
+    public void parseInto (BasicDBObject d) {
+        parser.parse(data, 0, d);
+    }
+
+    private static int[] toIntArray (Object o) {
+        if (o instanceof int[]) return (int[])o;
+        List<?> l = (List<?>)o;
+        int[] result = new int[l.size()];
+        for (int i=0; i<result.length; i++) result[i] = ((Number)l.get(i)).intValue();
+        return result;
+    }
+
+}
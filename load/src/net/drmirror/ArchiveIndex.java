@@ -0,0 +1,115 @@
+package net.drmirror;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The index of a chunked archive, which is a gzip file that consists of
+ * one member for every block of records (see ArchiveTranscoder).  Any
+ * gzip tool reads such a file as usual, but with the index, any range
+ * of blocks can be inflated on its own.
+ *
+ * The index is a text file next to the archive, with the name of the
+ * archive plus ".idx".  After a comment line, it has one line per block:
+ *
+ *   <offset in the archive> <offset in the data> <records> <first ts> <first st>
+ *
+ * separated by tabs.  The offsets are those of the first byte of the
+ * block in the compressed and in the uncompressed data, the timestamp
+ * is that of the first record as it appears in the data, and the
+ * station id is computed as in the database.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class ArchiveIndex {
+
+    public static final String SUFFIX = ".idx";
+
+    public static class Block {
+        public final long offset, dataOffset;
+        public final int records;
+        public final String ts, st;
+        public Block (long offset, long dataOffset, int records, String ts, String st) {
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.records = records;
+            this.ts = ts;
+            this.st = st;
+        }
+    }
+
+    private List<Block> blocks = new ArrayList<Block>();
+
+    public ArchiveIndex() {
+    }
+
+    /**
+     * Returns the index of an archive, or null if the file is not a
+     * chunked archive.
+     */
+    public static ArchiveIndex forArchive (String filename) throws IOException {
+        File f = new File (filename + SUFFIX);
+        if (!f.exists()) return null;
+        ArchiveIndex result = new ArchiveIndex();
+        BufferedReader in = new BufferedReader (new FileReader (f));
+        try {
+            while (true) {
+                String line = in.readLine();
+                if (line == null) break;
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] x = line.split("\t");
+                if (x.length != 5) throw new IOException("bad line in " + f + ": " + line);
+                result.add(new Block(Long.parseLong(x[0]), Long.parseLong(x[1]),
+                                     Integer.parseInt(x[2]), x[3], x[4]));
+            }
+        } finally {
+            in.close();
+        }
+        if (result.size() > 0 && result.get(result.size()-1).offset >= new File(filename).length())
+            throw new IOException(f + " does not match " + filename);
+        return result;
+    }
+
+    public void add (Block b) {
+        blocks.add(b);
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+
+    public Block get (int i) {
+        return blocks.get(i);
+    }
+
+    /**
+     * Returns the offsets of the blocks from first to last, exclusive,
+     * in the archive.
+     */
+    public long[] offsets (int first, int last) {
+        long[] result = new long[last - first];
+        for (int i=first; i<last; i++) result[i-first] = blocks.get(i).offset;
+        return result;
+    }
+
+    public void write (String archive) throws IOException {
+        Writer out = new BufferedWriter (new FileWriter (archive + SUFFIX));
+        try {
+            out.write("# offset\tdataOffset\trecords\tts\tst\n");
+            for (Block b : blocks) {
+                out.write(b.offset + "\t" + b.dataOffset + "\t" + b.records
+                          + "\t" + b.ts + "\t" + b.st + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package net.drmirror;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+/**
+ * Transcodes a directory of data files into chunked archives, which
+ * are gzip files with one member per block of records, each with an
+ * ArchiveIndex next to it.  DataLoader reads these directly; because
+ * every block can be inflated on its own, a file of any size can be
+ * loaded by any number of threads, without first decompressing what
+ * comes before their part.
+ *
+ *   ArchiveTranscoder [--blockRecords n] [--threads n] input output
+ *
+ * The input files may be compressed or not, the archives get the same
+ * names with ".gz".  The data is otherwise unchanged, except that every
+ * line ends with a single newline.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class ArchiveTranscoder {
+
+    @Parameter(description = "input output")
+    private List<String> arguments = new ArrayList<String>();
+
+    @Parameter(names="--blockRecords", description="records per independently compressed block")
+    private int blockRecords = 10000;
+
+    @Parameter(names="--threads", description="files transcoded at the same time")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Transcodes a single file into an archive and its index.
+     */
+    public void transcode (String input, String archive) throws IOException {
+        BufferedReader in = new BufferedReader (new InputStreamReader
+                                (DataLoader.openFile(input), StandardCharsets.ISO_8859_1), 1024 * 1024);
+        OutputStream out = new FileOutputStream (archive);
+        ArchiveIndex index = new ArchiveIndex();
+        try {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(1024 * 1024);
+            long offset = 0, dataOffset = 0;
+            while (true) {
+                String line = in.readLine();
+                if (line == null) break;
+                block.reset();
+                GZIPOutputStream z = new GZIPOutputStream(block, 64 * 1024);
+                String ts = field(line, 15, 27), st = stationId(line);
+                int records = 0;
+                long length = 0;
+                while (line != null) {
+                    byte[] b = (line + "\n").getBytes(StandardCharsets.ISO_8859_1);
+                    z.write(b);
+                    length += b.length;
+                    if (++records == blockRecords) break;
+                    line = in.readLine();
+                }
+                z.finish();
+                block.writeTo(out);
+                index.add(new ArchiveIndex.Block(offset, dataOffset, records, ts, st));
+                offset += block.size();
+                dataOffset += length;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        index.write(archive);
+    }
+
+    private static String field (String line, int start, int end) {
+        return line.length() >= end ? line.substring(start, end) : "";
+    }
+
+    private static String stationId (String line) {
+        return Util.generateStationId(field(line, 4, 10), field(line, 10, 15),
+                                      field(line, 28, 34), field(line, 34, 41));
+    }
+
+    public void run() throws Exception {
+        if (arguments.size() != 2) throw new IllegalArgumentException("usage: ArchiveTranscoder input output");
+        final File inputDir = new File(arguments.get(0));
+        final File outputDir = new File(arguments.get(1));
+        outputDir.mkdirs();
+
+        List<String> files = new ArrayList<String>(Arrays.asList(inputDir.list()));
+        Collections.sort(files);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final String f : files) {
+            if (f.endsWith(ArchiveIndex.SUFFIX)) continue;
+            results.add(pool.submit(new Runnable() {
+                public void run() {
+                    String name = f.endsWith(".gz") ? f : f + ".gz";
+                    try {
+                        transcode(new File(inputDir, f).getPath(), new File(outputDir, name).getPath());
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    System.out.println(f);
+                }
+            }));
+        }
+        pool.shutdown();
+        for (Future<?> r : results) r.get();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    public static void main (String[] args) throws Exception {
+        ArchiveTranscoder t = new ArchiveTranscoder();
+        new JCommander(t).parse(args);
+        t.run();
+    }
+
+}
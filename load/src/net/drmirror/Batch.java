@@ -0,0 +1,139 @@
+package net.drmirror;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * A batch of records that are parsed together and then inserted into
+ * the database in a single operation.  Subclasses decide in which form
+ * the parsed records are kept until then.
+ *
+ * A batch also remembers which lines of which files it holds, so that
+ * these can be entered into the Checkpoint once it has been inserted.
+ * With --rollups and --summaries, it also carries the daily Rollups and
+ * the StationSummaries of its records, which are written along with it.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public abstract class Batch {
+
+    private static class Range {
+        Checkpoint.Progress progress;
+        String file;
+        long start, end;
+    }
+
+    private List<Range> ranges = new ArrayList<Range>();
+
+    // flat records for a FlatProjection, if there is one
+    private List<DBObject> flattened = new ArrayList<DBObject>();
+
+    // the daily rollups of the records in this batch, if they are kept
+    private Rollups rollups = null;
+
+    // the station summaries of the records in this batch, if they are kept
+    private StationSummaries summaries = null;
+
+    /**
+     * Parses a record and adds it to this batch.
+     */
+    public abstract void add (RecordParser p, ByteBuffer line, int offset, int length);
+
+    public abstract int size();
+
+    /**
+     * Returns the number of bytes that the records in this batch take up
+     * when they are sent to the database, or an estimate of it.
+     */
+    public abstract long bytes();
+
+    public abstract void insertInto (DBCollection data);
+
+    public abstract void clear();
+
+    public void addFlattened (DBObject record) {
+        flattened.add(record);
+    }
+
+    public List<DBObject> flattened() {
+        return flattened;
+    }
+
+    public Rollups getRollups() {
+        return rollups;
+    }
+
+    public void setRollups (Rollups rollups) {
+        this.rollups = rollups;
+    }
+
+    public StationSummaries getSummaries() {
+        return summaries;
+    }
+
+    public void setSummaries (StationSummaries summaries) {
+        this.summaries = summaries;
+    }
+
+    /**
+     * Notes that the line between start and end of file has been added
+     * to this batch.  Consecutive lines are kept as a single range.
+     */
+    public void track (Checkpoint.Progress progress, String file, long start, long end) {
+        Range r = ranges.isEmpty() ? null : ranges.get(ranges.size()-1);
+        // allow for the line terminator between the previous line and this one
+        if (r != null && r.progress == progress && r.file.equals(file)
+              && start >= r.end && start <= r.end + 2) {
+            r.end = end;
+            return;
+        }
+        r = new Range();
+        r.progress = progress;
+        r.file = file;
+        r.start = start;
+        r.end = end;
+        ranges.add(r);
+        progress.retain();
+    }
+
+    /**
+     * Called when the batch has been inserted, to enter its lines into
+     * the checkpoint.
+     */
+    public void acknowledged (Checkpoint checkpoint) {
+        for (Range r : ranges) {
+            checkpoint.loaded(r.file, r.start, r.end);
+        }
+        checkpoint.flush();
+        for (Range r : ranges) {
+            r.progress.release();
+        }
+        ranges.clear();
+    }
+
+    /**
+     * Describes the batch by the lines it holds, so that a failed insert
+     * can be traced back to the input.
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("batch of ").append(size()).append(" records");
+        for (int i=0; i<ranges.size(); i++) {
+            Range r = ranges.get(i);
+            result.append(i == 0 ? " from " : ", ")
+                  .append(r.file).append(" [").append(r.start).append("-").append(r.end).append("]");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Called when the batch has been inserted and is no longer needed.
+     */
+    public void recycle() {
+    }
+
+}
@@ -0,0 +1,69 @@
+package net.drmirror;
+
+/**
+ * Decides how many records go into a batch.  The size of a record
+ * varies a lot with the number of additional sections it has, and the
+ * time an insert takes depends on what else the server is doing, so
+ * a fixed batch size is rarely the right one for a whole load.
+ *
+ * If a target latency is given, the time of each insert is measured
+ * and the batch size is moved toward the size that would have taken
+ * the target time, at most doubling or halving it at a time.  Without
+ * a target, the initial batch size is kept.  In either case a batch
+ * is considered full once it reaches the maximum number of bytes, so
+ * that memory stays bounded no matter how large the records are, and
+ * an adapted batch size is kept below the number of records that fit
+ * into that.
+ *
+ * A single BatchSizer is shared by all the threads of a load.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class BatchSizer {
+
+    private static final int MIN_BATCH_SIZE = 100;
+    private static final int MAX_BATCH_SIZE = 100000;
+
+    private long targetNanos;
+    private long maxBytes;
+
+    private volatile int batchSize;
+
+    /**
+     * Creates a BatchSizer that starts with the given batch size.
+     * If targetMillis is 0, the batch size stays as it is.
+     */
+    public BatchSizer (int batchSize, long targetMillis, long maxBytes) {
+        this.batchSize = batchSize;
+        this.targetNanos = targetMillis * 1000000L;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isFull (Batch b) {
+        return b.size() >= batchSize || b.bytes() >= maxBytes;
+    }
+
+    /**
+     * Called after a batch has been inserted, with the time it took.
+     */
+    public synchronized void inserted (Batch b, long nanos) {
+        int size = b.size();
+        if (targetNanos == 0 || size == 0) return;
+        // the measured batch may have been smaller than the current size,
+        // so the new size is computed from what was actually inserted
+        double factor = (double)targetNanos / Math.max(nanos, 1);
+        factor = Math.max(0.5, Math.min(2.0, factor));
+        double next = size * factor;
+        // a short batch, such as the last one of a thread, is no reason
+        // to shrink if it was fast enough
+        if (factor > 1.0) next = Math.max(next, batchSize);
+        long bytesPerRecord = Math.max(1, b.bytes() / size);
+        next = Math.min(next, maxBytes / bytesPerRecord);
+        batchSize = (int)Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, next));
+    }
+
+}
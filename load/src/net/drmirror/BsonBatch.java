@@ -0,0 +1,311 @@
+package net.drmirror;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.LazyBSONCallback;
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBEncoder;
+import com.mongodb.LazyDBObject;
+
+/**
+ * A batch that encodes its records directly into BSON, in a single
+ * buffer that is reused from one batch to the next.  The documents
+ * are sent to the database as they are, without building BasicDBObjects
+ * first and having the driver take those apart again.
+ *
+ * The methods for writing BSON assume that field names are plain
+ * ASCII, which is true for all the names we use.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class BsonBatch extends RecordBatch {
+
+    private static final byte DOUBLE    = 0x01;
+    private static final byte STRING    = 0x02;
+    private static final byte DOCUMENT  = 0x03;
+    private static final byte ARRAY     = 0x04;
+    private static final byte OBJECT_ID = 0x07;
+    private static final byte DATE      = 0x09;
+    private static final byte INT32     = 0x10;
+
+    // batches that have been inserted and can be filled again
+    private static ConcurrentLinkedQueue<BsonBatch> freeBatches = new ConcurrentLinkedQueue<BsonBatch>();
+
+    // the machine and process bytes of the ObjectIds that the driver makes
+    private static final int machine = ByteBuffer.wrap(new ObjectId().toByteArray(), 4, 4).getInt();
+    private static final AtomicInteger counter = new AtomicInteger(new Random().nextInt());
+
+    private static final LazyBSONCallback callback = new LazyBSONCallback();
+
+    private byte[] buf = new byte[1024 * 1024];
+    private int pos = 0;
+
+    // start positions of the documents that are currently open
+    private int[] open = new int[16];
+    private int depth = 0;
+
+    // start positions of the top-level documents in this batch
+    private int[] documents = new int[1024];
+    private int count = 0;
+
+    public static BsonBatch get() {
+        BsonBatch result = freeBatches.poll();
+        return result != null ? result : new BsonBatch();
+    }
+
+    public void add (RecordParser p, ByteBuffer line, int offset, int length) {
+        p.encodeRecord(line, offset, length, this);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long bytes() {
+        return pos;
+    }
+
+    public void insertInto (DBCollection data) {
+        List<DBObject> list = new ArrayList<DBObject>(count);
+        for (int i=0; i<count; i++) {
+            list.add(new LazyDBObject(buf, documents[i], callback));
+        }
+        data.insert(list, data.getWriteConcern(), new LazyDBEncoder());
+    }
+
+    /**
+     * The documents are already encoded one after the other.
+     */
+    public void writeTo (OutputStream out) throws IOException {
+        out.write(buf, 0, pos);
+    }
+
+    public void clear() {
+        pos = 0;
+        depth = 0;
+        count = 0;
+    }
+
+    public void recycle() {
+        clear();
+        freeBatches.offer(this);
+    }
+
+    public void startDocument() {
+        if (count == documents.length) documents = Arrays.copyOf(documents, count * 2);
+        documents[count++] = pos;
+        open();
+    }
+
+    public void startDocument (String name) {
+        name (DOCUMENT, name);
+        open();
+    }
+
+    public void startDocument (int index) {
+        name (DOCUMENT, index);
+        open();
+    }
+
+    public void endDocument() {
+        ensure(1);
+        buf[pos++] = 0;
+        int start = open[--depth];
+        writeInt (start, pos - start);
+    }
+
+    public void startArray (String name) {
+        name (ARRAY, name);
+        open();
+    }
+
+    public void endArray() {
+        endDocument();
+    }
+
+    public void putObjectId (String name) {
+        name (OBJECT_ID, name);
+        ensure(12);
+        writeIntBigEndian ((int)(System.currentTimeMillis() / 1000));
+        writeIntBigEndian (machine);
+        writeIntBigEndian (counter.getAndIncrement());
+    }
+
+    public void putInt (String name, int value) {
+        name (INT32, name);
+        ensure(4);
+        writeInt (pos, value);
+        pos += 4;
+    }
+
+    public void putInt (int index, int value) {
+        name (INT32, index);
+        ensure(4);
+        writeInt (pos, value);
+        pos += 4;
+    }
+
+    public void putDouble (String name, double value) {
+        name (DOUBLE, name);
+        writeDouble (value);
+    }
+
+    public void putDouble (int index, double value) {
+        name (DOUBLE, index);
+        writeDouble (value);
+    }
+
+    public void putDate (String name, long millis) {
+        name (DATE, name);
+        writeLong (millis);
+    }
+
+    public void putString (String name, String value) {
+        putString (name, value, 0, value.length());
+    }
+
+    /**
+     * Writes the characters between start and end of value as a string.
+     */
+    public void putString (String name, String value, int start, int end) {
+        name (STRING, name);
+        writeChars (value, start, end);
+    }
+
+    public void putString (int index, String value, int start, int end) {
+        name (STRING, index);
+        writeChars (value, start, end);
+    }
+
+    /**
+     * Writes the bytes between start and end of b as a string.
+     */
+    public void putString (String name, ByteBuffer b, int start, int end) {
+        name (STRING, name);
+        ensure((end - start) * 2 + 5);
+        int lengthPos = pos;
+        pos += 4;
+        for (int i=start; i<end; i++) {
+            byte c = b.get(i);
+            if (c >= 0) {
+                buf[pos++] = c;
+            } else {
+                buf[pos++] = (byte)(0xc0 | ((c & 0xff) >> 6));
+                buf[pos++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        buf[pos++] = 0;
+        writeInt (lengthPos, pos - lengthPos - 4);
+    }
+
+    /**
+     * Returns the current end of the buffer, from which copy() can take
+     * the elements that are written next.
+     */
+    public int mark() {
+        return pos;
+    }
+
+    /**
+     * Returns the bytes that were written since the mark, such as a
+     * complete element that putEncoded() can write again later.
+     */
+    public byte[] copy (int mark) {
+        return Arrays.copyOfRange(buf, mark, pos);
+    }
+
+    /**
+     * Writes one or more elements that were encoded before.
+     */
+    public void putEncoded (byte[] elements) {
+        ensure(elements.length);
+        System.arraycopy(elements, 0, buf, pos, elements.length);
+        pos += elements.length;
+    }
+
+    private void open() {
+        if (depth == open.length) open = Arrays.copyOf(open, depth * 2);
+        open[depth++] = pos;
+        ensure(4);
+        pos += 4;
+    }
+
+    private void name (byte type, String name) {
+        ensure(name.length() + 2);
+        buf[pos++] = type;
+        for (int i=0; i<name.length(); i++) buf[pos++] = (byte)name.charAt(i);
+        buf[pos++] = 0;
+    }
+
+    private void name (byte type, int index) {
+        ensure(12);
+        buf[pos++] = type;
+        if (index < 10) {
+            buf[pos++] = (byte)('0' + index);
+        } else {
+            String s = Integer.toString(index);
+            for (int i=0; i<s.length(); i++) buf[pos++] = (byte)s.charAt(i);
+        }
+        buf[pos++] = 0;
+    }
+
+    private void writeChars (String value, int start, int end) {
+        int length = end - start;
+        ensure(length * 2 + 5);
+        int lengthPos = pos;
+        pos += 4;
+        for (int i=start; i<end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte)c;
+            } else {
+                // only ISO-8859-1 can occur, as in the ByteBuffer case
+                buf[pos++] = (byte)(0xc0 | (c >> 6));
+                buf[pos++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        buf[pos++] = 0;
+        writeInt (lengthPos, pos - lengthPos - 4);
+    }
+
+    private void writeInt (int at, int value) {
+        buf[at]   = (byte)value;
+        buf[at+1] = (byte)(value >> 8);
+        buf[at+2] = (byte)(value >> 16);
+        buf[at+3] = (byte)(value >> 24);
+    }
+
+    private void writeIntBigEndian (int value) {
+        buf[pos++] = (byte)(value >> 24);
+        buf[pos++] = (byte)(value >> 16);
+        buf[pos++] = (byte)(value >> 8);
+        buf[pos++] = (byte)value;
+    }
+
+    private void writeLong (long value) {
+        ensure(8);
+        writeInt (pos, (int)value);
+        writeInt (pos + 4, (int)(value >> 32));
+        pos += 8;
+    }
+
+    private void writeDouble (double value) {
+        writeLong (Double.doubleToRawLongBits(value));
+    }
+
+    private void ensure (int n) {
+        if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+    }
+
+}
@@ -0,0 +1,83 @@
+package net.drmirror;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * A batch that groups its records into buckets by station and hour or
+ * day (see Buckets).  Consecutive records of the same bucket, which is
+ * the usual case within a data file, become a single upsert that pushes
+ * them onto the bucket's readings, so a bucket may be filled from
+ * several batches, or from several parts of a split file (see Upserts
+ * for when two of them open the same bucket at once).
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class BucketBatch extends Batch {
+
+    private static class Bucket {
+        String st;
+        long start;
+        List<DBObject> readings = new ArrayList<DBObject>();
+    }
+
+    private Buckets.Granularity granularity;
+    private List<Bucket> buckets = new ArrayList<Bucket>();
+    private int size = 0;
+    private long bytes = 0;
+
+    public BucketBatch (Buckets.Granularity granularity) {
+        this.granularity = granularity;
+    }
+
+    public void add (RecordParser p, ByteBuffer line, int offset, int length) {
+        BasicDBObject d = p.parseRecord(line, offset, length);
+        String st = (String)d.removeField("st");
+        long start = granularity.start(((Date)d.get("ts")).getTime());
+        Bucket b = buckets.isEmpty() ? null : buckets.get(buckets.size()-1);
+        if (b == null || b.start != start || !b.st.equals(st)) {
+            b = new Bucket();
+            b.st = st;
+            b.start = start;
+            buckets.add(b);
+        }
+        b.readings.add(d);
+        size++;
+        bytes += length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * As in DocumentBatch, this is the length of the input lines.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public void insertInto (DBCollection data) {
+        Upserts op = new Upserts(data);
+        for (Bucket b : buckets) {
+            op.add(new BasicDBObject("_id", Buckets.id(b.st, b.start)),
+                   new BasicDBObject("$push", new BasicDBObject("readings",
+                                                new BasicDBObject("$each", b.readings)))
+                             .append("$inc", new BasicDBObject("n", b.readings.size())));
+        }
+        op.execute();
+    }
+
+    public void clear() {
+        buckets.clear();
+        size = 0;
+        bytes = 0;
+    }
+
+}
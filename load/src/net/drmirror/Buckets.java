@@ -0,0 +1,109 @@
+package net.drmirror;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.beust.jcommander.IStringConverter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * The bucketed form of the data, in which all observations of one
+ * station within an hour or a day are kept in a single document:
+ *
+ *   { _id: { st: "u010230", ts: <start of the hour or day> },
+ *     n: <number of readings>,
+ *     readings: [ <the records, without "st">, ... ] }
+ *
+ * Since the station and the time are in the _id, its index serves the
+ * queries for a station or a range of stations, and it has one entry
+ * per bucket rather than one per observation.  Queries by time over
+ * all stations need the index on _id.ts (see INDEXES).
+ *
+ * DataLoader writes this form with --bucket (see BucketBatch), the
+ * find() method here reads it and unpacks the readings again.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Buckets {
+
+    public static final String COLLECTION = "buckets";
+
+    // built by DataLoader at the end of the load (see IndexBuilder)
+    public static final DBObject[] INDEXES = {
+        new BasicDBObject("_id.ts", 1)
+    };
+
+    public static enum Granularity {
+        HOUR (3600L * 1000), DAY (24L * 3600 * 1000);
+        private long millis;
+        private Granularity (long millis) {
+            this.millis = millis;
+        }
+        public long start (long ts) {
+            long offset = ts % millis;
+            return ts - (offset < 0 ? offset + millis : offset);
+        }
+    }
+
+    public static class GranularityConverter implements IStringConverter<Granularity> {
+        public Granularity convert (String data) {
+            return Enum.valueOf(Granularity.class, data);
+        }
+    }
+
+    public static DBObject id (String st, long bucketStart) {
+        return new BasicDBObject("st", st).append("ts", new Date(bucketStart));
+    }
+
+    /**
+     * Returns the readings of the stations from stMin to stMax and the
+     * times from tsMin to tsMax, as records of the normal form.  Both
+     * ranges include the minimum and exclude the maximum, unless they
+     * are equal, in which case only that station or that time is
+     * returned.  If stMin is null, all stations are returned.
+     */
+    public static List<DBObject> find (DBCollection buckets, Granularity g,
+                                       String stMin, String stMax, Date tsMin, Date tsMax) {
+        boolean pointInTime = tsMin.equals(tsMax);
+        Date first = new Date(g.start(tsMin.getTime()));
+        BasicDBObject tsQuery = pointInTime
+            ? new BasicDBObject("$gte", first).append("$lte", tsMax)
+            : new BasicDBObject("$gte", first).append("$lt", tsMax);
+        BasicDBObject query;
+        if (stMin == null) {
+            query = new BasicDBObject("_id.ts", tsQuery);
+        } else if (stMin.equals(stMax)) {
+            query = new BasicDBObject("_id", new BasicDBObject("$gte", id(stMin, first.getTime()))
+                                                  .append(pointInTime ? "$lte" : "$lt", id(stMin, tsMax.getTime())));
+        } else {
+            query = new BasicDBObject("_id", new BasicDBObject("$gte", id(stMin, first.getTime()))
+                                                  .append("$lt", new BasicDBObject("st", stMax)))
+                        .append("_id.ts", tsQuery);
+        }
+
+        List<DBObject> result = new ArrayList<DBObject>();
+        DBCursor c = buckets.find(query);
+        try {
+            while (c.hasNext()) {
+                DBObject bucket = c.next();
+                String st = (String)((DBObject)bucket.get("_id")).get("st");
+                for (Object o : (List<?>)bucket.get("readings")) {
+                    DBObject reading = (DBObject)o;
+                    Date ts = (Date)reading.get("ts");
+                    if (pointInTime ? !ts.equals(tsMin)
+                                    : ts.before(tsMin) || !ts.before(tsMax)) continue;
+                    reading.put("st", st);
+                    result.add(reading);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+}
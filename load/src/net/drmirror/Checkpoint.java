@@ -0,0 +1,214 @@
+package net.drmirror;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A manifest of the work that has made it into the database, so that
+ * a load that failed can be resumed where it stopped.
+ *
+ * The manifest is a log file with two kinds of entries.  A "range"
+ * entry says that the lines between two byte offsets of a file have
+ * been inserted, and is written each time a batch is acknowledged.
+ * A "done" entry says that a file, or a split part of it, has been
+ * loaded completely.  Offsets are counted in the uncompressed data,
+ * which works the same way for all the ways a file can be read.
+ *
+ * In addition, an "index" entry is written for each index that is
+ * dropped for the load, and "indexes built" once they have been built
+ * again (see IndexBuilder).
+ *
+ * When resuming, files that are done are skipped altogether, and lines
+ * that lie in a loaded range are skipped when the other files are read
+ * again.  At most the batches that were in flight are loaded twice.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Checkpoint {
+
+    /**
+     * Keeps track of the parts of a file that are not yet in the
+     * database.  Whoever holds on to lines of the file, from reading
+     * to acknowledging the batch, retains the Progress, and when the
+     * last one releases it, the file is done.
+     */
+    public class Progress {
+        private String name;
+        private AtomicInteger pending = new AtomicInteger(1);
+        private Progress (String name) {
+            this.name = name;
+        }
+        public void retain() {
+            pending.incrementAndGet();
+        }
+        public void release() {
+            if (pending.decrementAndGet() == 0) done(name);
+        }
+    }
+
+    private static final long[][] NO_RANGES = new long[0][];
+
+    private Writer out = null;
+
+    private Set<String> done = new HashSet<String>();
+
+    // for each file, the sorted and merged ranges that were loaded before
+    private Map<String,long[][]> loaded = new HashMap<String,long[][]>();
+
+    // the indexes that were dropped before and not built again, as
+    // pairs of the namespace and the description of the index in JSON
+    private List<String[]> droppedIndexes = new ArrayList<String[]>();
+
+    /**
+     * Creates a checkpoint that writes to the given manifest, or one that
+     * records nothing if filename is null.  If resume is true, the
+     * existing manifest is read first and new entries are appended to it.
+     */
+    public Checkpoint (String filename, boolean resume) throws IOException {
+        if (filename == null) return;
+        File f = new File(filename);
+        if (resume && f.exists()) read(f);
+        out = new BufferedWriter (new FileWriter (f, resume));
+    }
+
+    public boolean isDone (String name) {
+        return done.contains(name);
+    }
+
+    /**
+     * Returns true if the line that starts at the given offset of a file
+     * has already been loaded.
+     */
+    public boolean isLoaded (String file, long offset) {
+        long[][] ranges = loaded.get(file);
+        if (ranges == null) return false;
+        int low = 0, high = ranges.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[mid][1] <= offset) low = mid + 1;
+            else if (ranges[mid][0] > offset) high = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    public Progress start (String name) {
+        return new Progress(name);
+    }
+
+    public synchronized void loaded (String file, long start, long end) {
+        write ("range\t" + file + "\t" + start + "\t" + end);
+    }
+
+    public synchronized void done (String name) {
+        write ("done\t" + name);
+        flush();
+    }
+
+    /**
+     * Records an index that is dropped for the load (see IndexBuilder),
+     * before it is dropped.
+     */
+    public synchronized void droppedIndex (String namespace, String json) {
+        write ("index\t" + namespace + "\t" + json);
+        flush();
+    }
+
+    /**
+     * Records that the indexes that were dropped have been built again.
+     */
+    public synchronized void indexesBuilt() {
+        write ("indexes built");
+        flush();
+    }
+
+    public List<String[]> droppedIndexes() {
+        return droppedIndexes;
+    }
+
+    public synchronized void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) out.close();
+    }
+
+    private void write (String entry) {
+        if (out == null) return;
+        try {
+            out.write(entry);
+            out.write('\n');
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void read (File f) throws IOException {
+        Map<String,List<long[]>> ranges = new HashMap<String,List<long[]>>();
+        BufferedReader in = new BufferedReader (new FileReader (f));
+        while (true) {
+            String line = in.readLine();
+            if (line == null) break;
+            String[] fields = line.split("\t");
+            if (fields[0].equals("done") && fields.length == 2) {
+                done.add(fields[1]);
+            } else if (fields[0].equals("range") && fields.length == 4) {
+                List<long[]> l = ranges.get(fields[1]);
+                if (l == null) {
+                    l = new ArrayList<long[]>();
+                    ranges.put(fields[1], l);
+                }
+                l.add(new long[] { Long.parseLong(fields[2]), Long.parseLong(fields[3]) });
+            } else if (fields[0].equals("index") && fields.length == 3) {
+                droppedIndexes.add(new String[] { fields[1], fields[2] });
+            } else if (fields[0].equals("indexes built")) {
+                droppedIndexes.clear();
+            }
+            // anything else is a line that was cut off by the failure
+        }
+        in.close();
+        for (Map.Entry<String,List<long[]>> e : ranges.entrySet()) {
+            loaded.put(e.getKey(), merge(e.getValue()));
+        }
+    }
+
+    private static long[][] merge (List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare (long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        List<long[]> result = new ArrayList<long[]>();
+        for (long[] r : ranges) {
+            long[] last = result.isEmpty() ? null : result.get(result.size()-1);
+            if (last != null && r[0] <= last[1]) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                result.add(Arrays.copyOf(r, 2));
+            }
+        }
+        return result.isEmpty() ? NO_RANGES : result.toArray(NO_RANGES);
+    }
+
+}
@@ -0,0 +1,52 @@
+package net.drmirror;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A piece of a data file that contains only complete lines.  Chunks
+ * are produced by the ChunkReader and handed to whoever parses them,
+ * possibly on another thread.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Chunk {
+
+    /**
+     * Receives the lines of a chunk, without the line terminator.
+     */
+    public interface LineHandler {
+        public void line (ByteBuffer data, int offset, int length);
+    }
+
+    public final String file;
+    public final long offset;
+    public final ByteBuffer data;
+    public final int length;
+
+    // the file or part of a file that the chunk was read for (see Checkpoint)
+    public Checkpoint.Progress progress;
+
+    /**
+     * Creates a chunk that holds the given bytes, which start at offset
+     * within the uncompressed data of file.
+     */
+    public Chunk (String file, long offset, ByteBuffer data, int length) {
+        this.file = file;
+        this.offset = offset;
+        this.data = data;
+        this.length = length;
+    }
+
+    public void lines (LineHandler h) {
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && data.get(end) != '\n') end++;
+            int lineEnd = end;
+            if (lineEnd > start && data.get(lineEnd-1) == '\r') lineEnd--;
+            if (lineEnd > start) h.line(data, start, lineEnd - start);
+            start = end + 1;
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package net.drmirror;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads data files and cuts them into Chunks of complete lines.
+ *
+ * A file name may carry a suffix "=i=n", which means that only the
+ * i-th of n parts of the file should be read (see DataLoader.LargestFirstFilePool).
+ * For an uncompressed file, the parts are byte ranges that start and
+ * end on line boundaries, so each part can be read on its own.  A
+ * compressed file cannot be entered in the middle, so it is only
+ * decompressed once, by a separate thread, and the chunks are handed
+ * out to the readers of the n parts as they ask for them.
+ *
+ * A chunked archive (see ArchiveIndex) is compressed, but it can be
+ * split like an uncompressed file: each part is a range of blocks,
+ * which is inflated on its own.
+ *
+ * Uncompressed files can also be memory-mapped rather than read.  The
+ * chunks are then slices of the mapped file, so the bytes go to the
+ * parser without being copied or decoded.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class ChunkReader {
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    // how much of a file is mapped at a time
+    private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private static boolean memoryMapping = false;
+
+    public interface ChunkHandler {
+        public void chunk (Chunk c) throws InterruptedException;
+    }
+
+    private static Pattern splitPattern = Pattern.compile ("=([0-9]+)=([0-9]+)$");
+
+    // chunk buffers that have been parsed and can be filled again
+    private static ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    // compressed files that are currently being decompressed for several readers
+    private static Map<String,SharedReader> sharedReaders = new HashMap<String,SharedReader>();
+
+    public static void setMemoryMapping (boolean memoryMapping) {
+        ChunkReader.memoryMapping = memoryMapping;
+    }
+
+    public static void readFile (String filename, ChunkHandler h)
+      throws IOException, InterruptedException {
+        int numSplits = 1;
+        int mySplit = 0;
+        Matcher m = splitPattern.matcher(filename);
+        if (m.find()) {
+            numSplits = Integer.parseInt(m.group(2));
+            mySplit = Integer.parseInt(m.group(1));
+            filename = filename.substring(0, filename.length() - m.group().length());
+        }
+        ArchiveIndex index = filename.endsWith(".gz") ? ArchiveIndex.forArchive(filename) : null;
+        if (index != null) {
+            readBlocks(filename, index, mySplit, numSplits, h);
+        } else if (filename.endsWith(".gz") && numSplits > 1) {
+            getSharedReader(filename, numSplits).drain(h);
+        } else if (!filename.endsWith(".gz") && (numSplits > 1 || memoryMapping)) {
+            readRange(filename, mySplit, numSplits, h);
+        } else {
+            InputStream in = DataLoader.openFile(filename);
+            try {
+                read (filename, 0, in, Long.MAX_VALUE, h);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Reads at most limit bytes from the stream and passes them on in
+     * chunks.  Each chunk ends at a line boundary, except possibly the
+     * last one if the data doesn't end with a newline.  The stream is
+     * the content of file, starting at offset.
+     */
+    public static void read (String file, long offset, InputStream in, long limit, ChunkHandler h)
+      throws IOException, InterruptedException {
+        byte[] buf = getBuffer();
+        int filled = 0;
+        long remaining = limit;
+        while (remaining > 0) {
+            int n = in.read(buf, filled, (int)Math.min(buf.length - filled, remaining));
+            if (n < 0) break;
+            filled += n;
+            remaining -= n;
+            if (filled < buf.length) continue;
+            int last = filled - 1;
+            while (last >= 0 && buf[last] != '\n') last--;
+            if (last < 0) {
+                // a single line that is longer than the buffer
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                continue;
+            }
+            byte[] next = getBuffer();
+            int rest = filled - last - 1;
+            System.arraycopy(buf, last + 1, next, 0, rest);
+            h.chunk(new Chunk(file, offset, ByteBuffer.wrap(buf), last + 1));
+            offset += last + 1;
+            buf = next;
+            filled = rest;
+        }
+        if (filled > 0) h.chunk(new Chunk(file, offset, ByteBuffer.wrap(buf), filled));
+    }
+
+    /**
+     * Returns the buffer of a chunk that is no longer needed, so that
+     * it can be filled again.
+     */
+    public static void recycle (Chunk c) {
+        if (c.data.hasArray() && c.data.array().length == CHUNK_SIZE)
+            freeBuffers.offer(c.data.array());
+    }
+
+    private static byte[] getBuffer() {
+        byte[] result = freeBuffers.poll();
+        return result != null ? result : new byte[CHUNK_SIZE];
+    }
+
+    private static void readRange (String filename, int mySplit, int numSplits, ChunkHandler h)
+      throws IOException, InterruptedException {
+        RandomAccessFile f = new RandomAccessFile(filename, "r");
+        try {
+            long size = f.length();
+            long start = lineBoundary(f, size * mySplit / numSplits);
+            long end = lineBoundary(f, size * (mySplit+1) / numSplits);
+            if (memoryMapping) {
+                map (filename, f.getChannel(), start, end, h);
+            } else {
+                f.seek(start);
+                read (filename, start, Channels.newInputStream(f.getChannel()), end - start, h);
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Reads the mySplit-th of numSplits ranges of blocks of a chunked
+     * archive.  The offsets in the index are those of the first byte of
+     * each block, so the chunks have the same offsets as when the whole
+     * file is read.
+     */
+    private static void readBlocks (String filename, ArchiveIndex index, int mySplit, int numSplits,
+                                    ChunkHandler h) throws IOException, InterruptedException {
+        int first = index.size() * mySplit / numSplits;
+        int last = index.size() * (mySplit+1) / numSplits;
+        if (first == last) return;
+        long end = last < index.size() ? index.get(last).offset : new File(filename).length();
+        long limit = last < index.size() ? index.get(last).dataOffset - index.get(first).dataOffset
+                                         : Long.MAX_VALUE;
+        InputStream in = new ParallelGzipInputStream(filename, index.offsets(first, last), end,
+                                                     DataLoader.getInflaters());
+        try {
+            read (filename, index.get(first).dataOffset, in, limit, h);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Passes on the bytes between start and end of the file in chunks
+     * that are slices of the mapped file.  Since start and end are line
+     * boundaries, so are the boundaries of the chunks.
+     */
+    private static void map (String filename, FileChannel ch, long start, long end, ChunkHandler h)
+      throws IOException, InterruptedException {
+        long pos = start;
+        while (pos < end) {
+            long size = Math.min(SEGMENT_SIZE, end - pos);
+            MappedByteBuffer segment = ch.map(MapMode.READ_ONLY, pos, size);
+            int segmentEnd = (int)size;
+            if (pos + size < end) {
+                // leave the last incomplete line to the next segment
+                while (segmentEnd > 0 && segment.get(segmentEnd-1) != '\n') segmentEnd--;
+                if (segmentEnd == 0) throw new IOException("line too long at " + pos);
+            }
+            int chunkStart = 0;
+            while (chunkStart < segmentEnd) {
+                int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, segmentEnd);
+                while (chunkEnd < segmentEnd && segment.get(chunkEnd-1) != '\n') chunkEnd++;
+                ByteBuffer slice = segment.duplicate();
+                slice.position(chunkStart);
+                slice.limit(chunkEnd);
+                h.chunk(new Chunk(filename, pos + chunkStart, slice.slice(), chunkEnd - chunkStart));
+                chunkStart = chunkEnd;
+            }
+            pos += segmentEnd;
+        }
+    }
+
+    /**
+     * Returns the position of the first line that starts at or after pos.
+     */
+    private static long lineBoundary (RandomAccessFile f, long pos) throws IOException {
+        if (pos == 0 || pos >= f.length()) return Math.min(pos, f.length());
+        byte[] buf = new byte[8192];
+        f.seek(pos - 1);
+        while (true) {
+            long blockStart = f.getFilePointer();
+            int n = f.read(buf);
+            if (n < 0) return f.length();
+            for (int i=0; i<n; i++) {
+                if (buf[i] == '\n') return blockStart + i + 1;
+            }
+        }
+    }
+
+    private static SharedReader getSharedReader (String filename, int numSplits) {
+        synchronized (sharedReaders) {
+            SharedReader r = sharedReader(filename, numSplits);
+            r.attached++;
+            if (!r.started) {
+                r.started = true;
+                r.start();
+            }
+            if (r.attached + r.skipped == numSplits) sharedReaders.remove(filename);
+            return r;
+        }
+    }
+
+    private static SharedReader sharedReader (String filename, int numSplits) {
+        SharedReader r = sharedReaders.get(filename);
+        if (r == null) {
+            r = new SharedReader(filename);
+            sharedReaders.put(filename, r);
+        }
+        return r;
+    }
+
+    /**
+     * Notes that a part of a file is not going to be read, because it
+     * was loaded before (see Checkpoint).  For a compressed file, the
+     * shared reader then doesn't wait for that part, and if all parts
+     * are skipped, it is never started.
+     */
+    public static void skip (String filename) {
+        Matcher m = splitPattern.matcher(filename);
+        if (!m.find()) return;
+        int numSplits = Integer.parseInt(m.group(2));
+        filename = filename.substring(0, filename.length() - m.group().length());
+        if (!filename.endsWith(".gz") || numSplits < 2 || new File(filename + ArchiveIndex.SUFFIX).exists()) return;
+        synchronized (sharedReaders) {
+            SharedReader r = sharedReader(filename, numSplits);
+            r.skipped++;
+            if (r.attached + r.skipped == numSplits) sharedReaders.remove(filename);
+        }
+    }
+
+    private static class SharedReader extends Thread {
+
+        private static final Chunk END_OF_CHUNKS = new Chunk(null, 0, ByteBuffer.allocate(0), 0);
+
+        private String filename;
+        // the parts that have come to read, and those that never will
+        private int attached = 0, skipped = 0;
+        private boolean started = false;
+        private BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(16);
+        private volatile Throwable failure = null;
+
+        public SharedReader (String filename) {
+            this.filename = filename;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                InputStream in = DataLoader.openFile(filename);
+                try {
+                    read (filename, 0, in, Long.MAX_VALUE, new ChunkHandler() {
+                        public void chunk (Chunk c) throws InterruptedException {
+                            chunks.put(c);
+                        }
+                    });
+                } finally {
+                    in.close();
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                try {
+                    chunks.put(END_OF_CHUNKS);
+                } catch (InterruptedException ex) {
+                    // nobody is listening anymore
+                }
+            }
+        }
+
+        public void drain (ChunkHandler h) throws InterruptedException {
+            while (true) {
+                Chunk c = chunks.take();
+                if (c == END_OF_CHUNKS) {
+                    // leave it for the other parts; nothing comes after it
+                    chunks.put(END_OF_CHUNKS);
+                    break;
+                }
+                h.chunk(c);
+            }
+            if (failure != null) throw new RuntimeException(failure);
+        }
+
+    }
+
+}
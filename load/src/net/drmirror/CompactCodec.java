@@ -0,0 +1,64 @@
+package net.drmirror;
+
+import org.bson.BSONObject;
+
+/**
+ * Translates records that were loaded with --compact back into the
+ * normal form, for readers that expect that.
+ *
+ * In the compact form, the "sections" list holds numbers rather than
+ * three-character markers.  The number for a marker is its key in the
+ * table of Parser.MasterParser, which is computed from the characters
+ * of the marker itself, so it does not change when blocks are added.
+ * Fields that hold a single-character code, such as "quality" or
+ * "condition", hold the value of that character instead, so that each
+ * occurrence needs neither a string length nor a terminator.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class CompactCodec {
+
+    // the one-character code fields of the mandatory section
+    private static final String[] CODE_FIELDS = {
+        "dataSource",
+        "airTemperature.quality",
+        "dewPoint.quality",
+        "pressure.quality",
+        "wind.direction.quality",
+        "wind.type",
+        "wind.speed.quality",
+        "visibility.distance.quality",
+        "visibility.variability.value",
+        "visibility.variability.quality",
+        "skyCondition.ceilingHeight.quality",
+        "skyCondition.ceilingHeight.determination",
+        "skyCondition.cavok"
+    };
+
+    // only expand() is used, which doesn't keep any state
+    private static final Parser.MasterParser parser = new Parser.MasterParser();
+
+    /**
+     * Turns a record in compact form into the normal form, in place.
+     * Records that are already in normal form are left as they are.
+     */
+    public static void expand (BSONObject record) {
+        for (String path : CODE_FIELDS) {
+            expandCode (record, path);
+        }
+        parser.expand(record);
+    }
+
+    private static void expandCode (BSONObject d, String path) {
+        String[] names = path.split("\\.");
+        for (int i=0; i<names.length-1; i++) {
+            Object x = d.get(names[i]);
+            if (!(x instanceof BSONObject)) return;
+            d = (BSONObject)x;
+        }
+        String name = names[names.length-1];
+        Object value = d.get(name);
+        if (value instanceof Integer) d.put(name, String.valueOf((char)(int)(Integer)value));
+    }
+
+}
@@ -1,31 +1,28 @@
 package net.drmirror;
 
-import static net.drmirror.Util.createPoint;
-import static net.drmirror.Util.generateStationId;
-import static net.drmirror.Util.parseInt;
-
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
 import com.mongodb.BasicDBObject;
-import com.mongodb.BulkWriteOperation;
-import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 
 /**
@@ -38,218 +35,407 @@ import com.mongodb.MongoClient;
  * one thread reads, parses, and loads all the records in a single
  * data file, then moves on to the next data file.
  * 
- * A special consideration is the file that contains the data from
- * ships.  This file is about a hundred times larger than the other
- * files, so multiple worker threads read that file simultaneously
- * so that we don't lose too much parallelism on it.
+ * Files are handed out largest first, so that the threads finish at
+ * about the same time.  A special consideration is the file that
+ * contains the data from ships.  This file is about a hundred times
+ * larger than the other files, so multiple worker threads load that
+ * file simultaneously so that we don't lose too much parallelism on
+ * it.  The same is done for any file larger than --splitSize MB.  A
+ * split file is still only read once: if it is compressed, a single
+ * thread decompresses it and hands out the lines to the workers,
+ * otherwise each worker reads its own byte range of it (see
+ * ChunkReader).
+ * 
+ * Compressed files are inflated on separate threads ahead of the
+ * thread that parses them, and gzip files with several members are
+ * inflated by up to --inflaters threads in parallel (see
+ * ParallelGzipInputStream).
+ * 
+ * The directory may also hold chunked archives, as written by the
+ * ArchiveTranscoder, which are split among threads like uncompressed
+ * files, but read directly in their compressed form.
+ * 
+ * With --sink NULL, the records are parsed but only counted, which
+ * measures the throughput of reading and parsing without a database.
+ * With --sink FILE, they are written to the --sinkFile as concatenated
+ * BSON documents, which mongorestore can load later (see Sink).
+ * 
+ * With --mmap, uncompressed files are memory-mapped instead of read.
+ * 
+ * With --rawBson, records are encoded directly into BSON rather than
+ * into BasicDBObjects (see BsonBatch).
+ * 
+ * With --compiledParser, the additional sections are parsed by flat
+ * programs that are compiled from the parser tree of each block.
+ * 
+ * With --lazyAdd, the additional sections of each record are stored
+ * unparsed, together with an index of where each section starts, and
+ * are only parsed when they are read (see AdditionalData).
+ * 
+ * With --compact, section markers and one-character codes such as
+ * quality flags are stored as numbers rather than strings (see
+ * CompactCodec).
+ * 
+ * With --profile, only the fields listed in the given file are loaded,
+ * and all other blocks are skipped without being parsed (see
+ * FieldProfile).
+ * 
+ * With --flatten or --flattenFile, the flat records that the
+ * visualization reads are written to a second collection or a BSON
+ * file during the load (see FlatProjection), so that
+ * scripts/flatten-data.js doesn't have to be run afterwards.
+ * 
+ * With --rollups, daily aggregates of temperature, dew point, pressure
+ * and wind speed for each station are computed during the load and
+ * added to the given collection with each batch, before the batch is
+ * entered into the checkpoint (see Rollups).
+ * 
+ * With --summaries, the first and last timestamp, the number of
+ * observations, the bounds of the positions and the years of each
+ * station are collected during the load and added to the given
+ * collection with each batch, like the rollups (see StationSummaries).
+ * 
+ * With --bucket HOUR or --bucket DAY, the observations of each station
+ * are grouped by hour or day into documents of the "buckets" collection,
+ * rather than loaded as single documents (see Buckets).  Records are
+ * then always parsed into BasicDBObjects, even with --rawBson.
+ * 
+ * The indexes that the queries and the web application need, those in
+ * DATA_INDEXES or Buckets.INDEXES and those of the flat records, are
+ * built at the end of the load if they are missing.  With --indexes
+ * DEFER, all secondary indexes of these collections are dropped before
+ * the load instead, and built again at the same time at the end, which
+ * makes the inserts much faster.  The dropped indexes are recorded in
+ * the --checkpoint manifest, which is therefore required.  With
+ * --indexes NONE, they are left alone (see IndexBuilder).
+ * 
+ * With --pipeline, the work is instead divided into separate read,
+ * parse and write stages, each with its own number of threads (see
+ * the Pipeline class).  Large files are then split among the
+ * readers only.
+ * 
+ * With --targetLatency, the batch size is adapted during the load so
+ * that each insert takes about that many milliseconds, starting from
+ * the given batch size.  Batches are also cut off at --maxBatchBytes
+ * (see BatchSizer).
+ * 
+ * With --inFlight n, each loader thread hands its batches to up to n
+ * concurrent bulk writes and goes on parsing while they are sent, so
+ * that parsing and the network round trips overlap.
+ * 
+ * Every --metricsInterval seconds, the throughput, parse and write
+ * times, queue depths and the number of files left are printed.  The
+ * same numbers are available via JMX (see LoadMetrics).
+ * 
+ * With --checkpoint, every batch that the database acknowledges is
+ * entered into a manifest file, as is every file once it has been
+ * loaded completely.  If a load fails, running it again with --resume
+ * and the same manifest skips the work that was already done (see the
+ * Checkpoint class).
  * 
  * @author: Andre Spiegel <andre.spiegel@mongodb.com>
  */
 public class DataLoader {
 
-    /**
-     * This parses and converts the static part of a weather record.
-     * The optional parts are handled by the separate Parser class
-     * that is used by this one.
-     */
-    private static class RecordParser {
-
-        // had to encapsulate this because SimpleDateFormat is not thread-safe 
-        private SimpleDateFormat df = new SimpleDateFormat("yyyyMMddHHmm");
-
-        private Parser addParser = new Parser.MasterParser();
-        
-        public RecordParser() {
-            df.setTimeZone(TimeZone.getTimeZone("UTC"));
-        }
-        
-        public BasicDBObject parseRecord (String line) {
-            String usaf = line.substring(4,10);
-            String wban = line.substring(10,15);
-            Date ts = null;
-            try {
-              ts = df.parse(line.substring(15,27));
-            } catch (ParseException ex) {
-              throw new RuntimeException(ex);
-            }
-            String source = line.substring(27,28);
-            String latStr = line.substring(28,34);
-            Integer lat = parseInt(latStr);
-            String lonStr = line.substring(34,41);
-            Integer lon = parseInt(lonStr);
-            
-            String type = line.substring(41,46).trim();
-            String elevStr = line.substring(46,51);
-            int elev = parseInt(elevStr);
-            
-            String call = line.substring(51,56).trim();
-            String qc = line.substring(56,60);
-            
-            String tempStr = line.substring(87,92);
-            String tempQuality = line.substring(92,93);
-            double temp = (double)parseInt(tempStr) / 10.0;
-
-            String dewStr = line.substring(93,98);
-            String dewQuality = line.substring(98,99);
-            double dew = (double)parseInt(dewStr) / 10.0;
-
-            String pressStr = line.substring(99,104);
-            String pressQuality = line.substring(104,105);
-            double press = (double)parseInt(pressStr) / 10.0;
-            
-            int wd = parseInt(line.substring(60,63));
-            String wdq = line.substring(63,64);
-            String wt = line.substring(64,65);
-            double ws = (double)parseInt(line.substring(65,69)) / 10.0;
-            String wsq = line.substring(69,70);
-            
-            int skyh = parseInt(line.substring(70,75));
-            String skyq = line.substring(75,76);
-            String skyd = line.substring(76,77);
-            String skyc = line.substring(77,78);
-
-            int visd = parseInt(line.substring(78,84));
-            String visdq = line.substring(84,85);
-            String visv = line.substring(85,86);
-            String visvq = line.substring(86,87);
-            
-            String st = generateStationId(usaf, wban, latStr, lonStr);
-            BasicDBObject d = new BasicDBObject("st", st);
-            d.append("ts", ts);
-            if (!"999999".equals(usaf)) d.append("usaf",usaf);
-            if (!"99999".equals(wban))  d.append("wban",wban);
-            BasicDBObject p = createPoint(lon, lat);
-            if (p != null) d.append ("position", p);
-            d.append("elevation", elev);
-            d.append("callLetters", call);
-            d.append("qualityControlProcess", qc);
-            
-            d.append("dataSource", source).append ("type", type);
-            
-            d.append("airTemperature", new BasicDBObject("value",temp).append("quality",tempQuality))
-              .append("dewPoint", new BasicDBObject("value",dew).append("quality",dewQuality))
-              .append("pressure", new BasicDBObject("value",press).append("quality", pressQuality))
-              .append("wind", new BasicDBObject("direction", 
-                                 new BasicDBObject("angle", wd).append("quality",wdq))
-                              .append("type",wt)
-                              .append("speed",new BasicDBObject ("rate",ws)
-                                                    .append("quality",wsq)))
-              .append("visibility", new BasicDBObject("distance",
-                                     new BasicDBObject ("value", visd)
-                                         . append ("quality", visdq))
-                                    .append ("variability",
-                                       new BasicDBObject("value", visv)
-                                         .append("quality", visvq)))
-              .append("skyCondition", new BasicDBObject("ceilingHeight",
-                                        new BasicDBObject("value", skyh)
-                                         .append("quality", skyq)
-                                         .append("determination", skyd))
-                                      .append("cavok", skyc));
-            
-            if (line.length() > 108 && line.substring(105,108).equals("ADD"))
-                addParser.parse(line, 108, d);
-            
-            return d;
-        }
-             
+    @Parameter(description = "[directory [threads [batchSize]]]")
+    private List<String> arguments = new ArrayList<String>();
+    
+    @Parameter(names="--pipeline")
+    private boolean pipeline = false;
+    
+    @Parameter(names="--readers")
+    private int readers = 1;
+    
+    @Parameter(names="--parsers")
+    private int parsers = Runtime.getRuntime().availableProcessors();
+    
+    @Parameter(names="--writers")
+    private int writers = 4;
+    
+    @Parameter(names="--queueSize")
+    private int queueSize = 16;
+    
+    @Parameter(names="--rawBson")
+    private boolean rawBson = false;
+    
+    @Parameter(names="--compiledParser")
+    private boolean compiledParser = false;
+    
+    @Parameter(names="--lazyAdd")
+    private boolean lazyAdd = false;
+    
+    @Parameter(names="--compact")
+    private boolean compact = false;
+    
+    @Parameter(names="--profile", description="file with the names of the fields to load")
+    private String profileFile = null;
+    
+    private FieldProfile profile = null;
+    
+    @Parameter(names="--flatten", description="collection for the flat records of the visualization")
+    private String flattenCollection = null;
+    
+    @Parameter(names="--flattenFile", description="BSON file for the flat records of the visualization")
+    private String flattenFile = null;
+    
+    private FlatProjection projection = null;
+    
+    @Parameter(names="--rollups", description="collection for the daily aggregates per station")
+    private String rollupCollection = null;
+    
+    private DBCollection rollups = null;
+    
+    @Parameter(names="--summaries", description="collection for the summaries per station")
+    private String summaryCollection = null;
+    
+    private DBCollection summaries = null;
+    
+    @Parameter(names="--bucket", converter = Buckets.GranularityConverter.class,
+               description="HOUR or DAY, to store the observations of a station in buckets")
+    private Buckets.Granularity bucket = null;
+    
+    @Parameter(names="--inflaters", description="threads that inflate a multi-member gzip file")
+    private static int inflaters = 4;
+    
+    @Parameter(names="--sink", converter = Sink.TypeConverter.class,
+               description="MONGO to insert into the database, NULL to only count, FILE to write BSON")
+    private Sink.Type sinkType = Sink.Type.MONGO;
+    
+    @Parameter(names="--sinkFile", description="BSON file for --sink FILE")
+    private String sinkFile = null;
+    
+    private Sink sink = null;
+    
+    @Parameter(names="--indexes", converter = IndexBuilder.ModeConverter.class,
+               description="KEEP to build missing indexes after the load, DEFER to drop them before, NONE to leave them")
+    private IndexBuilder.Mode indexMode = IndexBuilder.Mode.KEEP;
+    
+    // the secondary indexes of the data collection
+    public static final DBObject[] DATA_INDEXES = {
+        new BasicDBObject("ts", 1).append("position", "2dsphere"),
+        new BasicDBObject("st", 1).append("ts", 1)
+    };
+    
+    private IndexBuilder indexes = null;
+    
+    @Parameter(names="--mmap")
+    private boolean mmap = false;
+    
+    @Parameter(names="--targetLatency", description="target milliseconds per insert, 0 for a fixed batch size")
+    private long targetLatency = 0;
+    
+    @Parameter(names="--maxBatchBytes")
+    private long maxBatchBytes = 16L * 1024 * 1024;
+    
+    @Parameter(names="--inFlight", description="bulk writes per loader thread that may be outstanding, 0 to write synchronously")
+    private int inFlight = 0;
+    
+    @Parameter(names="--splitSize", description="files larger than this many MB are loaded by several threads at once")
+    private long splitSize = 64;
+    
+    @Parameter(names="--metricsInterval", description="seconds between progress reports, 0 for none")
+    private int metricsInterval = 10;
+    
+    @Parameter(names="--checkpoint")
+    private String checkpointFile = null;
+    
+    @Parameter(names="--resume")
+    private boolean resume = false;
+    
+    private Checkpoint checkpoint;
+    private BatchSizer sizer;
+    private LoadMetrics metrics = new LoadMetrics();
+    
+    static int getInflaters() {
+        return inflaters;
     }
     
-    private static abstract class Loader extends Thread {
-        
-        private int numSplits = 1;
-        private int mySplit = 0;
+    static InputStream openFile (String filename) throws IOException {
+        return filename.endsWith(".gz") ? new ParallelGzipInputStream (filename, inflaters)
+                                        : new FileInputStream (filename);
+    }
+    
+    Batch newBatch (int batchSize) {
+        Batch result = bucket != null ? new BucketBatch(bucket)
+                     : rawBson ? BsonBatch.get() : new DocumentBatch(batchSize);
+        // a recycled batch still has its rollups and summaries, which were
+        // emptied when it was written
+        if (rollups != null && result.getRollups() == null) result.setRollups(new Rollups(rollups));
+        if (summaries != null && result.getSummaries() == null)
+            result.setSummaries(new StationSummaries(summaries));
+        return result;
+    }
+    
+    String collectionName() {
+        return bucket != null ? Buckets.COLLECTION : "data";
+    }
+    
+    RecordParser newParser() {
+        RecordParser result = new RecordParser(compiledParser);
+        result.setLazyAdd(lazyAdd);
+        result.setCompact(compact);
+        if (profile != null) result.setProfile(profile);
+        return result;
+    }
+    
+    Sink getSink() {
+        return sink;
+    }
+    
+    FlatProjection getProjection() {
+        return projection;
+    }
+    
+    Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+    
+    BatchSizer getSizer() {
+        return sizer;
+    }
+    
+    LoadMetrics getMetrics() {
+        return metrics;
+    }
+
+    private abstract class Loader extends Thread
+      implements ChunkReader.ChunkHandler, Chunk.LineHandler {
         
         private int batchSize = 10000;
-        private boolean useBulk = true;
-        private RecordParser parser = new RecordParser();
+        private RecordParser parser = newParser();
+        
+        private Batch buffer;
+        // the file that is being loaded, and the chunk of it that is being parsed
+        private Checkpoint.Progress progress;
+        private Chunk current;
+        
+        private LoadMetrics.ThreadMetrics stats = null;
         
-        private List<BasicDBObject> buffer;
-        protected DBCollection data;
+        // with --inFlight, the bulk writes that have been started, oldest first
+        private ExecutorService writer = null;
+        private LinkedList<Future<?>> pending = new LinkedList<Future<?>>();
 
-        public Loader (MongoClient client) {
-            this (client, 1000);
+        public Loader() {
+            this (1000);
         }
         
-        public Loader (MongoClient client, int batchSize) {
+        public Loader (int batchSize) {
             this.batchSize = batchSize;
-            DB db = client.getDB("ncdc");
-            data = db.getCollection("data");
-            buffer = new ArrayList<BasicDBObject>(batchSize);
+            buffer = newBatch(batchSize);
+            if (inFlight > 0) {
+                writer = Executors.newFixedThreadPool(inFlight, new ThreadFactory() {
+                    public Thread newThread (Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
         }
 
-        public void insert (String record) {
-            BasicDBObject d = parser.parseRecord(record);
-            buffer.add(d);
-            if (buffer.size() >= batchSize) {
-                if (useBulk) bulkInsert(data, buffer); else plainInsert(data, buffer);
-                buffer.clear();
+        public void insert (ByteBuffer line, int offset, int length) {
+            long start = System.nanoTime();
+            buffer.add(parser, line, offset, length);
+            if (projection != null) {
+                BasicDBObject f = parser.flatten(line);
+                if (f != null) buffer.addFlattened(f);
             }
+            if (buffer.getRollups() != null) parser.rollup(line, buffer.getRollups());
+            if (buffer.getSummaries() != null) parser.summarize(line, buffer.getSummaries());
+            metrics.parsed(stats, length, System.nanoTime() - start);
+            if (sizer.isFull(buffer)) flush();
         }
         
         public void finish() {
-            if (buffer.size() > 0) {
-                if (useBulk) bulkInsert(data, buffer); else plainInsert(data, buffer);
+            if (buffer.size() > 0) flush();
+            while (!pending.isEmpty()) waitFor (pending.removeFirst());
+            if (writer != null) writer.shutdown();
+        }
+        
+        /**
+         * Writes the current batch.  With --inFlight, the write is only
+         * started and parsing goes on with a new batch; once the limit
+         * of outstanding writes is reached, we wait for the oldest one.
+         */
+        private void flush() {
+            if (writer == null) {
+                write (buffer);
                 buffer.clear();
+                return;
             }
+            final Batch b = buffer;
+            buffer = newBatch(batchSize);
+            if (pending.size() >= inFlight) waitFor (pending.removeFirst());
+            pending.add(writer.submit(new Runnable() {
+                public void run() {
+                    write (b);
+                    b.recycle();
+                }
+            }));
         }
         
-        private void bulkInsert (DBCollection data, List<BasicDBObject> buffer) {
-            BulkWriteOperation op = data.initializeUnorderedBulkOperation();
-            for (BasicDBObject o : buffer) {
-                op.insert(o);
+        private void write (Batch b) {
+            long start = System.nanoTime();
+            try {
+                sink.write(b);
+            } catch (RuntimeException ex) {
+                throw new RuntimeException("insert failed for " + b, ex);
             }
-            op.execute();
-        }
-
-        private void plainInsert (DBCollection data, List<BasicDBObject> buffer) {
-            data.insert (buffer.toArray(new BasicDBObject[]{}));
+            long nanos = System.nanoTime() - start;
+            sizer.inserted(b, nanos);
+            metrics.written(nanos);
+            if (projection != null) projection.write(b);
+            if (b.getRollups() != null) b.getRollups().flush();
+            if (b.getSummaries() != null) b.getSummaries().flush();
+            b.acknowledged(checkpoint);
         }
         
-        private static Pattern splitPattern = Pattern.compile ("=([0-9]+)=([0-9]+)$");
+        private void waitFor (Future<?> f) {
+            try {
+                f.get();
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
         
         protected void loadFile (String filename) {
-            Matcher m = splitPattern.matcher(filename);
-            if (m.find()) {
-                int length = filename.length();
-                numSplits = Integer.parseInt(m.group(2));
-                mySplit = Integer.parseInt(m.group(1));
-                filename = filename.substring(0,length-m.group().length());
-            } else {
-                numSplits = 1;
-                mySplit = 0;
-            }
+            if (stats == null) stats = metrics.register(getName());
+            progress = checkpoint.start(filename);
             try {
-                BufferedReader in = filename.endsWith(".gz")
-                    ? new BufferedReader (
-                          new InputStreamReader (
-                              new GZIPInputStream (
-                                  new FileInputStream (filename))))
-                    : new BufferedReader (new FileReader(filename));
-                int i=0;          
-                while (true) {
-                    String line = in.readLine();
-                    if (line == null) break;
-                    if (i % numSplits == mySplit) insert(line);
-                    i = (i+1) % numSplits;
-                }
-                in.close();
+                ChunkReader.readFile (filename, this);
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
+            progress.release();
+        }
+
+        public void chunk (Chunk c) {
+            current = c;
+            c.lines(this);
+            ChunkReader.recycle(c);
+        }
+
+        public void line (ByteBuffer line, int offset, int length) {
+            long pos = current.offset + offset;
+            if (checkpoint.isLoaded(current.file, pos)) return;
+            buffer.track(progress, current.file, pos, pos + length);
+            insert (line, offset, length);
         }
 
     }
     
-    private static class PoolLoader extends Loader {
+    private class PoolLoader extends Loader {
 
         private FilePool pool = null;
         
-        public PoolLoader (MongoClient client, FilePool pool) {
-            this (client, pool, 1000);
+        public PoolLoader (FilePool pool) {
+            this (pool, 1000);
         }
         
-        public PoolLoader (MongoClient client, FilePool pool, int batchSize) {
-            super(client, batchSize);
+        public PoolLoader (FilePool pool, int batchSize) {
+            super(batchSize);
             this.pool = pool;
         }
         
@@ -258,6 +444,11 @@ public class DataLoader {
             while (true) {
                 String filename = pool.getFile();
                 if (filename == null) break;
+                if (checkpoint.isDone(filename)) {
+                    ChunkReader.skip(filename);
+                    System.out.println(filename + " ...skipped");
+                    continue;
+                }
                 System.out.println(filename);
                 loadFile (filename);
                 System.out.println(filename + " ...done");
@@ -266,12 +457,12 @@ public class DataLoader {
         }
     }
     
-    private static class FileLoader extends Loader {
+    private class FileLoader extends Loader {
      
         private String filename;
         
-        public FileLoader (MongoClient c, String filename, int batchSize) {
-            super (c, batchSize);
+        public FileLoader (String filename, int batchSize) {
+            super (batchSize);
             this.filename = filename;
         }
 
@@ -283,7 +474,7 @@ public class DataLoader {
         
     }
     
-    private static abstract class FilePool {
+    static abstract class FilePool {
         
         protected String dir;
         protected List<String> files;
@@ -295,50 +486,56 @@ public class DataLoader {
         
         public abstract String getFile();
         
+        public synchronized int remaining() {
+            return files.size();
+        }
+        
     }
     
-    private static class RandomFilePool extends FilePool {
-        
-        // The last file in the list is about 100 times larger than the other ones.
-        // This flag indicates that this file should be processed first, to achieve
-        // maximum parallelism on that one.
-        private boolean lastFileFirst = false;
+    /**
+     * Hands out the largest files first, so that no large file is left
+     * for the end of the load, when all other threads are already idle.
+     * The ship file, and any other file that is larger than splitSize,
+     * is split into parts that are loaded by several threads at once.
+     * For compressed files, the compressed size is used, which is close
+     * enough for ordering.
+     */
+    private static class LargestFirstFilePool extends FilePool {
         
-        public RandomFilePool (String dir, List<String> files, int numThreads) {
+        public LargestFirstFilePool (String dir, List<String> files, int numThreads, long splitSize) {
             super (dir, files);
-            if (numThreads > 1) {
-                lastFileFirst = true;
-                splitShips (numThreads);
-            }
-        }
-        
-        private void splitShips (int numThreads) {
-            int numSplits = Math.min(numThreads, 32);
-            String shipFile = files.get(files.size()-1);
-            if (shipFile.startsWith("999999-99999-")) {
-                files.remove(files.size()-1);
-                for (int i=0; i<numSplits; i++) {
-                    files.add(shipFile + "=" + i + "=" + numSplits);
+            final Map<String,Long> sizes = new HashMap<String,Long>();
+            List<String> parts = new ArrayList<String>();
+            for (String f : this.files) {
+                long size = new File(dir, f).length();
+                long numSplits = f.startsWith("999999-99999-") ? numThreads
+                               : splitSize > 0 ? (size + splitSize - 1) / splitSize : 1;
+                numSplits = Math.min(numSplits, Math.min(numThreads, 32));
+                if (numSplits > 1) {
+                    for (int i=0; i<numSplits; i++) {
+                        String part = f + "=" + i + "=" + numSplits;
+                        parts.add(part);
+                        sizes.put(part, size / numSplits);
+                    }
+                } else {
+                    parts.add(f);
+                    sizes.put(f, size);
                 }
             }
+            // the parts of a split file stay together, so that they are
+            // read at the same time
+            Collections.sort(parts, new Comparator<String>() {
+                public int compare (String a, String b) {
+                    int result = sizes.get(b).compareTo(sizes.get(a));
+                    return result != 0 ? result : a.compareTo(b);
+                }
+            });
+            this.files = new LinkedList<String>(parts);
         }
         
         public synchronized String getFile() {
             if (!files.isEmpty()) {
-                String result = null;
-                if (lastFileFirst) {
-                    result = files.get(files.size()-1);
-                    if (result.startsWith("999999-99999-")) {
-                        files.remove (files.size()-1);
-                        return dir + "/" + result;
-                    } else {
-                        lastFileFirst = false;
-                    }
-                }
-                int index = (int)(Math.random() * (double)files.size());
-                result = files.get(index);
-                files.remove(index);
-                return dir + "/" + result;
+                return dir + "/" + files.remove(0);
             } else {
                 return null;
             }
@@ -364,32 +561,139 @@ public class DataLoader {
     }
     
     
-    public static void main (String[] args) throws Exception {
+    public void load() throws Exception {
 
-        String dirname = args.length > 0 ? args[0] : ".";
-        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
-        int batchSize  = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        ChunkReader.setMemoryMapping(mmap);
+        
+        if (resume && checkpointFile == null)
+            throw new IllegalArgumentException("--resume requires a --checkpoint file");
+        if (indexMode == IndexBuilder.Mode.DEFER && checkpointFile == null)
+            throw new IllegalArgumentException("--indexes DEFER requires a --checkpoint file");
+        checkpoint = new Checkpoint(checkpointFile, resume);
+        if (profileFile != null) profile = new FieldProfile(profileFile);
+        if (bucket != null && profile != null && !(profile.contains("st") && profile.contains("ts")))
+            throw new IllegalArgumentException("--bucket requires st and ts in the --profile");
+        // buckets are filled by upserts, only a RecordBatch can be written to a file
+        if (bucket != null && sinkType == Sink.Type.FILE)
+            throw new IllegalArgumentException("--bucket cannot be used with --sink FILE");
+        
+        String dirname = arguments.size() > 0 ? arguments.get(0) : ".";
+        int numThreads = arguments.size() > 1 ? Integer.parseInt(arguments.get(1)) : 1;
+        int batchSize  = arguments.size() > 2 ? Integer.parseInt(arguments.get(2)) : 1000;
+        sizer = new BatchSizer(batchSize, targetLatency, maxBatchBytes);
 
         //MongoClientOptions options = MongoClientOptions.builder()
         //  .writeConcern(WriteConcern.UNACKNOWLEDGED).build();
-        MongoClient c = new MongoClient("localhost");
+        // without a database sink, we only connect if something else needs it
+        MongoClient c = null;
+        if (sinkType == Sink.Type.MONGO || flattenCollection != null
+              || rollupCollection != null || summaryCollection != null) {
+            c = new MongoClient("localhost");
+        }
+        switch (sinkType) {
+        case MONGO: sink = new Sink.Mongo(c.getDB("ncdc").getCollection(collectionName()));
+                    break;
+        case NULL:  sink = new Sink.Null();
+                    break;
+        case FILE:  if (sinkFile == null)
+                        throw new IllegalArgumentException("--sink FILE requires a --sinkFile");
+                    sink = new Sink.BsonFile(sinkFile);
+                    break;
+        }
+        if (flattenCollection != null) {
+            projection = new FlatProjection(c.getDB("ncdc").getCollection(flattenCollection));
+        } else if (flattenFile != null) {
+            projection = new FlatProjection(flattenFile);
+        }
+        if (rollupCollection != null) {
+            rollups = c.getDB("ncdc").getCollection(rollupCollection);
+        }
+        if (summaryCollection != null) {
+            summaries = c.getDB("ncdc").getCollection(summaryCollection);
+        }
+        indexes = new IndexBuilder(indexMode, checkpoint);
+        if (sinkType == Sink.Type.MONGO) {
+            for (DBObject keys : bucket != null ? Buckets.INDEXES : DATA_INDEXES)
+                indexes.declare(c.getDB("ncdc").getCollection(collectionName()), keys);
+        }
+        if (flattenCollection != null) {
+            for (DBObject keys : FlatProjection.INDEXES)
+                indexes.declare(c.getDB("ncdc").getCollection(flattenCollection), keys);
+        }
+        indexes.dropBeforeLoad();
 
+        // each step is taken even if the ones before failed, and the first
+        // failure is the one that is thrown, with the later ones suppressed
+        Exception failure = null;
+        try {
+            run(dirname, numThreads, batchSize);
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        try {
+            sink.close();
+            if (projection != null) projection.close();
+        } catch (Exception ex) {
+            failure = suppress(failure, ex);
+        }
+        try {
+            // after a failure, only the indexes that were dropped are built again
+            if (failure == null) indexes.build(metricsInterval);
+            else indexes.buildDropped(metricsInterval);
+        } catch (Exception ex) {
+            failure = suppress(failure, ex);
+        }
+        checkpoint.close();
+        if (c != null) c.close();
+        if (failure != null) throw failure;
+    }
+    
+    private static Exception suppress (Exception failure, Exception ex) {
+        if (failure == null) return ex;
+        failure.addSuppressed(ex);
+        return failure;
+    }
+    
+    private void run (String dirname, int numThreads, int batchSize) throws Exception {
         File dir = new File(dirname);
         String[] flist = dir.list();
-        List<String> files = new LinkedList<String>(Arrays.asList(flist));
+        List<String> files = new LinkedList<String>();
+        for (String f : flist) {
+            // the indexes of chunked archives are read along with them
+            if (!f.endsWith(ArchiveIndex.SUFFIX)) files.add(f);
+        }
         Collections.sort(files);
 
-        FilePool pool = new RandomFilePool(dirname, files, numThreads);
+        if (pipeline) {
+            FilePool pool = new LargestFirstFilePool(dirname, files, readers, splitSize * 1024 * 1024);
+            metrics.setPool(pool);
+            metrics.start(metricsInterval);
+            new Pipeline(this, pool, queueSize)
+                .run(readers, parsers, writers);
+            metrics.stop();
+            return;
+        }
+        
+        FilePool pool = new LargestFirstFilePool(dirname, files, numThreads, splitSize * 1024 * 1024);
         List<Loader> loaders = new ArrayList<Loader>();
         for (int i=0; i<numThreads; i++) {
-            loaders.add(new PoolLoader(c, pool, batchSize));
+            Loader l = new PoolLoader(pool, batchSize);
+            l.setName("loader-" + i);
+            loaders.add(l);
         }
         
+        metrics.setPool(pool);
+        metrics.start(metricsInterval);
         for (Loader l : loaders) l.start();
         for (Loader l : loaders) l.join();
-        
-        c.close();
-        
+        metrics.stop();
+    }
+    
+    public static void main (String[] args) throws Exception {
+        DataLoader d = new DataLoader();
+        JCommander jc = new JCommander(d);
+        jc.parse(args);
+        d.load();
     }
     
 }
@@ -0,0 +1,69 @@
+package net.drmirror;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+
+/**
+ * A batch that keeps its records as BasicDBObjects and inserts
+ * them with an unordered bulk operation.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class DocumentBatch extends RecordBatch {
+
+    private List<BasicDBObject> documents;
+
+    // the length of the lines that the documents were parsed from
+    private long bytes = 0;
+
+    public DocumentBatch (int batchSize) {
+        documents = new ArrayList<BasicDBObject>(batchSize);
+    }
+
+    public void add (RecordParser p, ByteBuffer line, int offset, int length) {
+        documents.add(p.parseRecord(line, offset, length));
+        bytes += length;
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * We don't know the encoded size of the documents without encoding
+     * them, so we use the length of the input lines as an estimate.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public void insertInto (DBCollection data) {
+        BulkWriteOperation op = data.initializeUnorderedBulkOperation();
+        for (BasicDBObject o : documents) {
+            op.insert(o);
+        }
+        op.execute();
+    }
+
+    public void writeTo (OutputStream out) throws IOException {
+        BasicBSONEncoder encoder = new BasicBSONEncoder();
+        for (BasicDBObject o : documents) {
+            out.write(encoder.encode(o));
+        }
+    }
+
+    public void clear() {
+        documents.clear();
+        bytes = 0;
+    }
+
+}
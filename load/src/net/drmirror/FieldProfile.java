@@ -0,0 +1,76 @@
+package net.drmirror;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The fields of a record that a load should materialize.  A profile is
+ * a text file with one field name per line, where empty lines and lines
+ * starting with # are ignored.  The names are those of the top-level
+ * fields of a record: the mandatory fields such as "ts", "position" or
+ * "airTemperature", the "sections" list, and the field names of the
+ * blocks in Parser.MasterParser, such as "skyCoverLayer".
+ *
+ * Blocks that are not in the profile are skipped without decoding them.
+ * Records loaded with --lazyAdd keep all of their additional data, the
+ * profile then only applies to the mandatory fields.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class FieldProfile {
+
+    public static final List<String> MANDATORY_FIELDS = Collections.unmodifiableList(Arrays.asList(
+        "st", "ts", "usaf", "wban", "position", "elevation", "callLetters",
+        "qualityControlProcess", "dataSource", "type", "airTemperature", "dewPoint",
+        "pressure", "wind", "visibility", "skyCondition"
+    ));
+
+    public static final String SECTIONS = "sections";
+
+    private static final Set<String> blockFields = new Parser.MasterParser().fieldNames();
+
+    private Set<String> fields = new HashSet<String>();
+
+    public FieldProfile (String filename) throws IOException {
+        BufferedReader in = new BufferedReader (new FileReader (filename));
+        try {
+            while (true) {
+                String line = in.readLine();
+                if (line == null) break;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                add (line);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public FieldProfile (Collection<String> fields) {
+        for (String f : fields) add (f);
+    }
+
+    private void add (String field) {
+        if (!MANDATORY_FIELDS.contains(field) && !field.equals(SECTIONS)
+            && !blockFields.contains(field)) {
+            throw new IllegalArgumentException("unknown field in profile: " + field);
+        }
+        fields.add(field);
+    }
+
+    public boolean contains (String field) {
+        return fields.contains(field);
+    }
+
+    public Set<String> fields() {
+        return Collections.unmodifiableSet(fields);
+    }
+
+}
@@ -0,0 +1,72 @@
+package net.drmirror;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Receives the flat records (t, x, y, c, a, w) that the visualization
+ * reads, while the data is being loaded.  This is what
+ * scripts/flatten-data.js computes with an aggregation over the whole
+ * data collection afterwards, only here the values come straight from
+ * the parser (see RecordParser.flatten()).
+ *
+ * The records either go into a collection, which gets the same indexes
+ * as the one built by the script (see INDEXES), or into a file of
+ * concatenated BSON documents, which mongorestore can load.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class FlatProjection {
+
+    // built by DataLoader at the end of the load (see IndexBuilder)
+    public static final DBObject[] INDEXES = {
+        new BasicDBObject("t", 1),
+        new BasicDBObject("c", "2dsphere").append("w", 1)
+    };
+
+    private DBCollection collection = null;
+    private OutputStream out = null;
+
+    public FlatProjection (DBCollection collection) {
+        this.collection = collection;
+    }
+
+    public FlatProjection (String filename) throws IOException {
+        this.out = new BufferedOutputStream (new FileOutputStream (filename), 1024 * 1024);
+    }
+
+    /**
+     * Writes the flat records of a batch, and removes them from it.
+     */
+    public void write (Batch b) {
+        List<DBObject> records = b.flattened();
+        if (records.isEmpty()) return;
+        if (collection != null) {
+            collection.insert(records);
+        } else {
+            BasicBSONEncoder encoder = new BasicBSONEncoder();
+            synchronized (this) {
+                try {
+                    for (DBObject r : records) out.write(encoder.encode(r));
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+        records.clear();
+    }
+
+    public void close() throws IOException {
+        if (out != null) out.close();
+    }
+
+}
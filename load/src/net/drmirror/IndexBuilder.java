@@ -0,0 +1,250 @@
+package net.drmirror;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.beust.jcommander.IStringConverter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+
+/**
+ * The secondary indexes of the collections that a load writes to.
+ * DataLoader declares the indexes that the queries and the web
+ * application need, such as { ts: 1, position: "2dsphere" } on the
+ * data collection, which scripts/indexes-on-data.js used to create by
+ * hand.  What happens to them depends on the mode:
+ *
+ *   KEEP   existing indexes are maintained during the load, and those
+ *          of the declared ones that are missing are built at the end
+ *   DEFER  all secondary indexes of the collections are dropped before
+ *          the load, and built again at the end, together with the
+ *          declared ones
+ *   NONE   indexes are neither dropped nor built
+ *
+ * Before an index is dropped, it is entered into the Checkpoint, which
+ * DEFER therefore requires, and the dropped indexes are built again
+ * even if the load fails (but not the missing ones, see buildDropped()).
+ * If the process dies before that, the next load with --resume and the
+ * same manifest builds them, whatever its mode.
+ *
+ * Maintaining the indexes while inserting costs about half the rate
+ * of a bulk load, building them once at the end is much cheaper.  The
+ * indexes are built at the same time, one thread each, and the progress
+ * that the server reports for them is printed every few seconds.  (Up
+ * to MongoDB 4.0, foreground builds in the same database still wait for
+ * each other on the server.)
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class IndexBuilder {
+
+    public static enum Mode { KEEP, DEFER, NONE }
+
+    public static class ModeConverter implements IStringConverter<Mode> {
+        public Mode convert (String data) {
+            return Enum.valueOf(Mode.class, data);
+        }
+    }
+
+    private static class Index {
+        DBCollection collection;
+        DBObject keys, options;
+        // whether the index existed and was dropped, rather than declared
+        boolean dropped = false;
+        Index (DBCollection collection, DBObject keys, DBObject options) {
+            this.collection = collection;
+            this.keys = keys;
+            this.options = options;
+        }
+        public String toString() {
+            return collection.getFullName() + " " + keys;
+        }
+    }
+
+    private Mode mode;
+    private Checkpoint checkpoint;
+
+    // the indexes to build, by collection and keys, in the order declared
+    private Map<String,Index> indexes = new LinkedHashMap<String,Index>();
+
+    public IndexBuilder (Mode mode, Checkpoint checkpoint) {
+        this.mode = mode;
+        this.checkpoint = checkpoint;
+    }
+
+    public void declare (DBCollection collection, DBObject keys) {
+        if (mode == Mode.NONE) return;
+        add (new Index(collection, keys, new BasicDBObject()));
+    }
+
+    private void add (Index i) {
+        String id = i.toString();
+        if (!indexes.containsKey(id)) indexes.put(id, i);
+    }
+
+    /**
+     * Takes over the indexes that an earlier load dropped and did not
+     * build again, according to the checkpoint.  Then, in DEFER mode,
+     * drops the secondary indexes of the collections that indexes were
+     * declared for, and remembers them so that they are built again,
+     * with their names and options, by build().
+     */
+    public void dropBeforeLoad() {
+        List<DBCollection> collections = new ArrayList<DBCollection>();
+        for (Index i : indexes.values()) {
+            if (!collections.contains(i.collection)) collections.add(i.collection);
+        }
+        for (String[] entry : checkpoint.droppedIndexes()) {
+            DBCollection c = collection(collections, entry[0]);
+            if (c == null) {
+                System.out.println("cannot build index " + entry[1] + " on " + entry[0]
+                                   + ", which an earlier load dropped, without its collection");
+                continue;
+            }
+            replace(dropped(c, (DBObject)JSON.parse(entry[1])));
+        }
+        if (mode != Mode.DEFER) return;
+        for (DBCollection c : collections) {
+            for (DBObject info : c.getIndexInfo()) {
+                String name = (String)info.get("name");
+                if ("_id_".equals(name)) continue;
+                BasicDBObject spec = new BasicDBObject();
+                for (String k : info.keySet()) {
+                    if (!k.equals("v") && !k.equals("ns")) spec.append(k, info.get(k));
+                }
+                replace(dropped(c, spec));
+                // recorded first, so that it is not lost if we fail after dropping it
+                checkpoint.droppedIndex(c.getFullName(), JSON.serialize(spec));
+                c.dropIndex(name);
+                System.out.println("dropped index " + name + " on " + c.getFullName());
+            }
+        }
+    }
+
+    /**
+     * Returns the collection with the given full name, from the same
+     * database as the declared ones, or null if none were declared.
+     */
+    private static DBCollection collection (List<DBCollection> declared, String fullName) {
+        for (DBCollection c : declared) {
+            if (c.getFullName().equals(fullName)) return c;
+        }
+        if (declared.isEmpty()) return null;
+        int dot = fullName.indexOf('.');
+        return declared.get(0).getDB().getSisterDB(fullName.substring(0, dot))
+                                      .getCollection(fullName.substring(dot + 1));
+    }
+
+    /**
+     * Makes an index from the description of a dropped one, which has
+     * the keys under "key" and the options next to them.
+     */
+    private static Index dropped (DBCollection c, DBObject spec) {
+        BasicDBObject options = new BasicDBObject();
+        for (String k : spec.keySet()) {
+            if (!k.equals("key")) options.append(k, spec.get(k));
+        }
+        Index result = new Index(c, (DBObject)spec.get("key"), options);
+        result.dropped = true;
+        return result;
+    }
+
+    /**
+     * Adds an index that takes the place of a declared one with the same
+     * keys, so that its name and options are kept.
+     */
+    private void replace (Index i) {
+        indexes.remove(i.toString());
+        add(i);
+    }
+
+    /**
+     * Builds the indexes, all at the same time, and prints the progress
+     * every interval seconds (never if it is 0).  Returns when all of
+     * them are done, and notes that in the checkpoint.
+     */
+    public void build (int interval) throws InterruptedException {
+        build (new ArrayList<Index>(indexes.values()), interval);
+    }
+
+    /**
+     * Builds only the indexes that were dropped, which is what a failed
+     * load does: it leaves the collections with the indexes they had,
+     * rather than spend the time on the missing ones before it exits.
+     */
+    public void buildDropped (int interval) throws InterruptedException {
+        List<Index> dropped = new ArrayList<Index>();
+        for (Index i : indexes.values()) {
+            if (i.dropped) dropped.add(i);
+        }
+        build (dropped, interval);
+    }
+
+    private void build (List<Index> indexes, int interval) throws InterruptedException {
+        if (indexes.isEmpty()) return;
+        final long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(indexes.size());
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final Index i : indexes) {
+            results.add(pool.submit(new Runnable() {
+                public void run() {
+                    i.collection.createIndex(i.keys, i.options);
+                    System.out.println("built index " + i + " in "
+                                       + (System.currentTimeMillis() - start) / 1000 + " s");
+                }
+            }));
+        }
+        pool.shutdown();
+        while (!pool.awaitTermination(interval > 0 ? interval : 60, TimeUnit.SECONDS)) {
+            if (interval > 0) printProgress(indexes);
+        }
+        for (Future<?> r : results) {
+            try {
+                r.get();
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        checkpoint.indexesBuilt();
+    }
+
+    /**
+     * Prints the messages of the index builds that the server is
+     * running on our collections, such as "Index Build: 1234/5678 21%".
+     */
+    private void printProgress (List<Index> indexes) {
+        List<String> namespaces = new ArrayList<String>();
+        for (Index i : indexes) namespaces.add(i.collection.getFullName());
+        DB admin = indexes.get(0).collection.getDB().getSisterDB("admin");
+        try {
+            CommandResult r = admin.command(new BasicDBObject("currentOp", 1));
+            Object inprog = r.ok() ? r.get("inprog")
+                                   : admin.getCollection("$cmd.sys.inprog").findOne().get("inprog");
+            if (!(inprog instanceof List)) return;
+            for (Object o : (List<?>)inprog) {
+                DBObject op = (DBObject)o;
+                Object msg = op.get("msg");
+                if (msg == null) continue;
+                // index builds run as commands, which older servers list under "db.$cmd"
+                if (namespaces.contains(op.get("ns")) || msg.toString().startsWith("Index Build")) {
+                    System.out.println("  " + op.get("ns") + ": " + msg);
+                }
+            }
+        } catch (MongoException ex) {
+            System.out.println("  index builds running, no progress available: " + ex.getMessage());
+        }
+    }
+
+}
@@ -76,6 +76,11 @@ public class LoadGenerator extends Thread {
     
     private static final double NANOS_PER_MILLI = 1000000.0;
     
+    // take the active years of the stations from what DataLoader --summaries
+    // recorded, rather than from the begin and end dates of the station list
+    @Parameter(names="--summaries")
+    private static String summaryCollection = null;
+    
     // maps years to the ids of stations that were active in that year
     private static Map<Integer,List<String>> stations;
     private static Object stationLock = new Object();
@@ -114,6 +119,10 @@ public class LoadGenerator extends Thread {
 
     @Parameter(names="--showQueries")
     private boolean showQueries = false;
+
+    // query the bucketed form of the data, as loaded with DataLoader --bucket
+    @Parameter(names="--buckets", converter = Buckets.GranularityConverter.class)
+    private Buckets.Granularity buckets = null;
     
     // statistics
     
@@ -159,7 +168,7 @@ public class LoadGenerator extends Thread {
 
     private void initConnection() {
         db = getMongoClient().getDB("ncdc");
-        data = db.getCollection("data");
+        data = db.getCollection(buckets != null ? Buckets.COLLECTION : "data");
     }
     
     private List<String> getStationsForYear (int year) {
@@ -172,6 +181,10 @@ public class LoadGenerator extends Thread {
     private static void initStations() {
         stations = new HashMap<Integer,List<String>>();
         DB db = getMongoClient().getDB("ncdc");
+        if (summaryCollection != null) {
+            initStationsFromSummaries(db.getCollection(summaryCollection));
+            return;
+        }
         DBCollection station = db.getCollection("station");
         DBCursor c = station.find();
         Calendar cal_begin = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
@@ -197,6 +210,24 @@ public class LoadGenerator extends Thread {
         }
     }
     
+    private static void initStationsFromSummaries (DBCollection summaries) {
+        DBCursor c = summaries.find(new BasicDBObject(), new BasicDBObject("years", 1));
+        for (DBObject o : c) {
+            String st = (String)o.get("_id");
+            List<?> years = (List<?>)o.get("years");
+            if (years == null) continue;
+            for (Object y : years) {
+                int year = ((Number)y).intValue();
+                List<String> stx = stations.get(year);
+                if (stx == null) {
+                    stx = new ArrayList<String>();
+                    stations.put(year, stx);
+                }
+                stx.add(st);
+            }
+        }
+    }
+    
     private static void printStations() {
         List<Integer> years = new ArrayList<Integer>(stations.keySet());
         Collections.sort(years);
@@ -306,6 +337,8 @@ public class LoadGenerator extends Thread {
             System.out.print("ts: " + df.format(tsRange.min) + "  " + df.format(tsRange.max));
         }
         
+        if (buckets != null) return queryBuckets(tsRange, stRange);
+
         BasicDBObject query = tsRange.min.equals(tsRange.max) 
                             ? new BasicDBObject("ts", tsRange.min)
                             : new BasicDBObject("ts", new BasicDBObject("$gte", tsRange.min)
@@ -330,6 +363,22 @@ public class LoadGenerator extends Thread {
         return r;
     }
     
+    private QueryResult queryBuckets (Range<Date> tsRange, Range<String> stRange) {
+        long startTime = System.nanoTime();
+        List<DBObject> x = Buckets.find (data, buckets,
+                                         stRange == null ? null : stRange.min,
+                                         stRange == null ? null : stRange.max,
+                                         tsRange.min, tsRange.max);
+        long endTime = System.nanoTime();
+
+        if (showQueries) System.out.println("  " + x.size());
+
+        QueryResult r = new QueryResult();
+        r.nanos = endTime - startTime;
+        r.documents = x.size();
+        return r;
+    }
+    
     private void updateStats (QueryResult r) {
         synchronized (statLock) {
             nanos.add(r.nanos);
@@ -0,0 +1,262 @@
+package net.drmirror;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+/**
+ * Counters that show where the time of a load goes: how many records
+ * and bytes are parsed, overall and by each thread, how long parsing
+ * and bulk writes take, how full the queues between the stages of a
+ * Pipeline are, and how many files are left in the FilePool.
+ *
+ * The counters are printed periodically and are also registered as
+ * an MBean, so they can be watched with jconsole or any other JMX
+ * client while the load is running.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class LoadMetrics implements LoadMetricsMBean {
+
+    /**
+     * The counters of a single thread.  Only the thread itself updates
+     * them, everybody else only reads.
+     */
+    public static class ThreadMetrics {
+        private String name;
+        private volatile long records = 0;
+        private volatile long bytes = 0;
+        private long lastRecords = 0;
+        private long lastBytes = 0;
+        private ThreadMetrics (String name) {
+            this.name = name;
+        }
+        public void add (long records, long bytes) {
+            this.records += records;
+            this.bytes += bytes;
+        }
+    }
+
+    private long startTime = System.nanoTime();
+
+    private AtomicLong records = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong parseNanos = new AtomicLong();
+
+    private Histogram writeLatency = new Histogram();
+
+    private List<ThreadMetrics> threads = new CopyOnWriteArrayList<ThreadMetrics>();
+    private Map<String,Collection<?>> queues = new LinkedHashMap<String,Collection<?>>();
+    private DataLoader.FilePool pool = null;
+
+    private Timer timer = null;
+
+    // the state at the time of the last report
+    private long lastTime = startTime;
+    private long lastRecords = 0;
+    private long lastBytes = 0;
+
+    public ThreadMetrics register (String name) {
+        ThreadMetrics result = new ThreadMetrics(name);
+        threads.add(result);
+        return result;
+    }
+
+    public synchronized void addQueue (String name, Collection<?> queue) {
+        queues.put(name, queue);
+    }
+
+    public void setPool (DataLoader.FilePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Counts a record of the given length that took the given time to parse.
+     */
+    public void parsed (ThreadMetrics t, int length, long nanos) {
+        records.incrementAndGet();
+        bytes.addAndGet(length);
+        parseNanos.addAndGet(nanos);
+        t.add(1, length);
+    }
+
+    public void written (long nanos) {
+        writeLatency.add(nanos / 1000);
+    }
+
+    /**
+     * Registers the MBean and, if seconds is greater than zero, starts
+     * printing a report at that interval.
+     */
+    public void start (int seconds) {
+        startTime = lastTime = System.nanoTime();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean
+                (this, new ObjectName("net.drmirror:type=LoadMetrics"));
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        if (seconds > 0) {
+            timer = new Timer("metrics", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    report();
+                }
+            }, seconds * 1000L, seconds * 1000L);
+        }
+    }
+
+    public void stop() {
+        if (timer != null) timer.cancel();
+        report();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean
+                (new ObjectName("net.drmirror:type=LoadMetrics"));
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public synchronized void report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastTime, 1) / 1e9;
+        long r = records.get(), b = bytes.get();
+        System.out.println(String.format
+            ("%d records, %.0f records/s, %.1f MB/s, parse %.0f ns/record, "
+             + "write %.0f/%.0f/%.0f ms (50/90/99%%), queues %s, %d files left",
+             r, (r - lastRecords) / seconds, (b - lastBytes) / seconds / 1e6,
+             getParseNanosPerRecord(),
+             getWriteMillis50(), getWriteMillis90(), getWriteMillis99(),
+             getQueueDepths(), getFilesRemaining()));
+        StringBuilder perThread = new StringBuilder();
+        for (ThreadMetrics t : threads) {
+            long tr = t.records, tb = t.bytes;
+            if (tb == t.lastBytes) continue;
+            perThread.append(perThread.length() == 0 ? "  " : ", ")
+                     .append(String.format("%s %.0f/s %.1f MB/s", t.name,
+                                           (tr - t.lastRecords) / seconds,
+                                           (tb - t.lastBytes) / seconds / 1e6));
+            t.lastRecords = tr;
+            t.lastBytes = tb;
+        }
+        if (perThread.length() > 0) System.out.println(perThread);
+        lastTime = now;
+        lastRecords = r;
+        lastBytes = b;
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getRecordsPerSecond() {
+        return records.get() / elapsedSeconds();
+    }
+
+    public double getBytesPerSecond() {
+        return bytes.get() / elapsedSeconds();
+    }
+
+    public double getParseNanosPerRecord() {
+        long r = records.get();
+        return r == 0 ? 0.0 : (double)parseNanos.get() / r;
+    }
+
+    public double getWriteMillis50() {
+        return writeLatency.percentile(0.5) / 1000.0;
+    }
+
+    public double getWriteMillis90() {
+        return writeLatency.percentile(0.9) / 1000.0;
+    }
+
+    public double getWriteMillis99() {
+        return writeLatency.percentile(0.99) / 1000.0;
+    }
+
+    public synchronized String getQueueDepths() {
+        if (queues.isEmpty()) return "-";
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String,Collection<?>> e : queues.entrySet()) {
+            if (result.length() > 0) result.append(" ");
+            result.append(e.getKey()).append("=").append(e.getValue().size());
+        }
+        return result.toString();
+    }
+
+    public int getFilesRemaining() {
+        return pool == null ? 0 : pool.remaining();
+    }
+
+    public String getThreadRecordsPerSecond() {
+        double seconds = elapsedSeconds();
+        StringBuilder result = new StringBuilder();
+        for (ThreadMetrics t : threads) {
+            if (result.length() > 0) result.append(", ");
+            result.append(t.name).append(" ").append(Math.round(t.records / seconds));
+        }
+        return result.toString();
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(System.nanoTime() - startTime, 1) / 1e9;
+    }
+
+    /**
+     * A histogram of microsecond values, with four buckets for each power
+     * of two, so that percentiles are accurate to within 25 percent.
+     */
+    private static class Histogram {
+
+        private AtomicLongArray counts = new AtomicLongArray(256);
+
+        public void add (long micros) {
+            counts.incrementAndGet(bucket(micros));
+        }
+
+        /**
+         * Returns an upper bound of the given fraction of all values.
+         */
+        public long percentile (double fraction) {
+            long total = 0;
+            for (int i=0; i<counts.length(); i++) total += counts.get(i);
+            if (total == 0) return 0;
+            long wanted = (long)Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i=0; i<counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= wanted) return lowerBound(i+1);
+            }
+            return lowerBound(counts.length());
+        }
+
+        private static int bucket (long micros) {
+            if (micros < 4) return (int)Math.max(micros, 0);
+            int msb = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int)(micros >> (msb - 2)) & 3;
+            return Math.min(msb * 4 + sub - 4, 255);
+        }
+
+        private static long lowerBound (int bucket) {
+            if (bucket < 4) return bucket;
+            int msb = (bucket + 4) / 4;
+            int sub = (bucket + 4) % 4;
+            return (long)(4 + sub) << (msb - 2);
+        }
+
+    }
+
+}
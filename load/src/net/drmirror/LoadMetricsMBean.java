@@ -0,0 +1,28 @@
+package net.drmirror;
+
+/**
+ * The attributes of a running load that are visible via JMX,
+ * see LoadMetrics.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public interface LoadMetricsMBean {
+
+    public long getRecords();
+    public long getBytes();
+
+    public double getRecordsPerSecond();
+    public double getBytesPerSecond();
+
+    public double getParseNanosPerRecord();
+
+    public double getWriteMillis50();
+    public double getWriteMillis90();
+    public double getWriteMillis99();
+
+    public String getQueueDepths();
+    public int getFilesRemaining();
+
+    public String getThreadRecordsPerSecond();
+
+}
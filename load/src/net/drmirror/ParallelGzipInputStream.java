@@ -0,0 +1,416 @@
+package net.drmirror;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a gzip file, decompressing it on separate threads ahead of the
+ * reader, so that the thread that parses the data doesn't also have to
+ * inflate it.
+ *
+ * A gzip file may consist of several members, each of which can be
+ * inflated on its own.  Larger files are therefore cut into parts, one
+ * per thread, each starting at the first member that begins after an
+ * even fraction of the file.  The members are not listed anywhere, so
+ * the start of a part is found by looking for a gzip header and trying
+ * to inflate a little from there.  Each thread inflates members from
+ * the start of its part until it reaches the start of another part, at
+ * which point it knows that it has done its share, or the end of the
+ * file.  The stream returns the data of a part after that of the part
+ * where the previous one ended, so if a part did not actually start at
+ * a member, it is never used.
+ *
+ * The threads of later parts can only work ahead as far as their
+ * buffers go (BLOCKS_AHEAD), which bounds the memory that a file takes:
+ * each part holds at most BLOCKS_AHEAD + 1 blocks of inflated data and
+ * a buffer of compressed data, about 1.3 MB, so with --inflaters 4 an
+ * open file takes up to about 5.5 MB, and 32 loader threads up to about
+ * 180 MB.  Most of the gain is from inflating ahead of the parser at
+ * all; later parts only get a head start of that much.
+ *
+ * For a chunked archive, the members are listed in its ArchiveIndex,
+ * so no searching is needed, and any range of them can be read.
+ *
+ * A file with a single member, which is the usual case, is inflated by
+ * a single thread.  Like GZIPInputStream, we stop at anything after a
+ * member that isn't another member.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    // the size of the blocks of inflated data
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    // the size of the reads from the file
+    private static final int READ_SIZE = 64 * 1024;
+
+    // the inflated blocks that each thread may be ahead of the reader; the
+    // threads of later parts can only work ahead this far, too
+    private static final int BLOCKS_AHEAD = 4;
+
+    // files smaller than this many bytes per thread use fewer threads
+    private static final long MIN_PART_SIZE = 16L * 1024 * 1024;
+
+    // how far to look for a member after the nominal start of a part
+    private static final long SCAN_LIMIT = 4L * 1024 * 1024;
+
+    // how much to inflate to check that a member starts somewhere
+    private static final int PROBE_SIZE = 64 * 1024;
+
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private static class Block {
+        byte[] data = new byte[BLOCK_SIZE];
+        int length = 0;
+    }
+
+    private static final Block END_OF_PART = new Block();
+
+    private String filename;
+
+    // where the data ends, normally the end of the file
+    private long endOfData;
+    private long[] starts;
+    private Part[] parts;
+    private ConcurrentLinkedQueue<Block> freeBlocks = new ConcurrentLinkedQueue<Block>();
+
+    // the part that is being read, and the block of it
+    private int current = 0;
+    private Block block = null;
+    private int blockPos = 0;
+
+    public ParallelGzipInputStream (String filename, int threads) throws IOException {
+        this (filename, threads, MIN_PART_SIZE);
+    }
+
+    /**
+     * Uses parts of at least minPartSize bytes, so that tests can split
+     * small files.
+     */
+    ParallelGzipInputStream (String filename, int threads, long minPartSize) throws IOException {
+        this.filename = filename;
+        RandomAccessFile f = new RandomAccessFile (filename, "r");
+        try {
+            endOfData = f.length();
+            int n = (int)Math.max(1, Math.min(threads, endOfData / minPartSize));
+            starts = findParts(f.getChannel(), n);
+        } finally {
+            f.close();
+        }
+        startParts();
+    }
+
+    /**
+     * Reads the members of the file from the first of the given ones up
+     * to the end position, when it is known where the members start (see
+     * ArchiveIndex).  The parts then start at some of these members.
+     */
+    public ParallelGzipInputStream (String filename, long[] members, long end, int threads) {
+        this.filename = filename;
+        this.endOfData = end;
+        int n = Math.max(1, Math.min(threads, members.length));
+        starts = new long[n];
+        for (int i=0; i<n; i++) starts[i] = members[i * members.length / n];
+        startParts();
+    }
+
+    /**
+     * Returns the number of parts that the file was cut into.
+     */
+    int parts() {
+        return starts.length;
+    }
+
+    private void startParts() {
+        parts = new Part[starts.length];
+        for (int i=0; i<parts.length; i++) {
+            parts[i] = new Part(i);
+            parts[i].start();
+        }
+    }
+
+    /**
+     * Returns the start of the first part, which is the beginning of the
+     * file, and of those other parts for which a member could be found.
+     */
+    private long[] findParts (FileChannel ch, int n) throws IOException {
+        long[] result = new long[n];
+        int found = 1;
+        byte[] buf = new byte[READ_SIZE];
+        for (int i=1; i<n; i++) {
+            long pos = Math.max(endOfData * i / n, result[found-1] + 1);
+            long limit = Math.min(pos + SCAN_LIMIT, endOfData);
+            long member = -1;
+            while (member < 0 && pos < limit) {
+                int len = ch.read(ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, limit - pos)), pos);
+                if (len < 4) break;
+                for (int k=0; k<len-3 && member < 0; k++) {
+                    if (buf[k] == (byte)0x1f && buf[k+1] == (byte)0x8b && buf[k+2] == 8
+                        && (buf[k+3] & 0xe0) == 0 && isMember(ch, pos + k)) member = pos + k;
+                }
+                pos += len - 3;
+            }
+            if (member > 0) result[found++] = member;
+        }
+        long[] starts = new long[found];
+        System.arraycopy(result, 0, starts, 0, found);
+        return starts;
+    }
+
+    private boolean isMember (FileChannel ch, long pos) {
+        Inflater inflater = new Inflater(true);
+        try {
+            Compressed in = new Compressed(ch, pos);
+            if (!in.header()) return false;
+            byte[] out = new byte[PROBE_SIZE];
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                if (inflater.needsInput() && !in.feed(inflater)) return false;
+                n += inflater.inflate(out, n, out.length - n);
+                if (inflater.needsDictionary()) return false;
+            }
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } catch (DataFormatException ex) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reading of the compressed data from a position of the file.
+     */
+    private class Compressed {
+
+        private FileChannel ch;
+        private byte[] buf = new byte[READ_SIZE];
+        private long bufPos;
+        private int pos = 0, end = 0;
+
+        public Compressed (FileChannel ch, long start) {
+            this.ch = ch;
+            this.bufPos = start;
+        }
+
+        public long position() {
+            return bufPos + pos;
+        }
+
+        private boolean fill() throws IOException {
+            bufPos += end;
+            pos = 0;
+            end = 0;
+            int n = ch.read(ByteBuffer.wrap(buf), bufPos);
+            if (n <= 0) return false;
+            end = n;
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (pos == end && !fill()) throw new EOFException("unexpected end of " + filename);
+            return buf[pos++] & 0xff;
+        }
+
+        public int readShort() throws IOException {
+            return read() | (read() << 8);
+        }
+
+        public int readInt() throws IOException {
+            return readShort() | (readShort() << 16);
+        }
+
+        /**
+         * Gives the inflater all the bytes we have, or returns false at
+         * the end of the file.
+         */
+        public boolean feed (Inflater inflater) throws IOException {
+            if (pos == end && !fill()) return false;
+            inflater.setInput(buf, pos, end - pos);
+            pos = end;
+            return true;
+        }
+
+        /**
+         * Takes back the bytes that the inflater didn't need.
+         */
+        public void unread (int n) {
+            pos -= n;
+        }
+
+        /**
+         * Reads the header of a member, or returns false if there is
+         * none at this position.
+         */
+        public boolean header() throws IOException {
+            if (position() >= endOfData) return false;
+            if (read() != 0x1f || read() != 0x8b || read() != 8) return false;
+            int flags = read();
+            if ((flags & 0xe0) != 0) return false;
+            for (int i=0; i<6; i++) read(); // time, extra flags, os
+            if ((flags & FEXTRA) != 0) {
+                for (int n = readShort(); n > 0; n--) read();
+            }
+            if ((flags & FNAME) != 0) while (read() != 0);
+            if ((flags & FCOMMENT) != 0) while (read() != 0);
+            if ((flags & FHCRC) != 0) readShort();
+            return true;
+        }
+
+    }
+
+    /**
+     * Inflates the members of a part.
+     */
+    private class Part extends Thread {
+
+        private int index;
+        private BlockingQueue<Block> blocks = new ArrayBlockingQueue<Block>(BLOCKS_AHEAD);
+        private volatile Throwable failure = null;
+        private volatile boolean cancelled = false;
+
+        // the part that follows the members of this one
+        private volatile int next;
+
+        public Part (int index) {
+            super("inflate-" + index + "-" + filename);
+            this.index = index;
+            this.next = starts.length;
+            setDaemon(true);
+        }
+
+        public void run() {
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            Block b = newBlock();
+            try {
+                RandomAccessFile f = new RandomAccessFile (filename, "r");
+                try {
+                    Compressed in = new Compressed(f.getChannel(), starts[index]);
+                    while (!cancelled && in.header()) {
+                        inflater.reset();
+                        crc.reset();
+                        while (!inflater.finished()) {
+                            if (inflater.needsInput() && !in.feed(inflater))
+                                throw new EOFException("unexpected end of " + filename);
+                            int n = inflater.inflate(b.data, b.length, b.data.length - b.length);
+                            if (inflater.needsDictionary())
+                                throw new IOException("unsupported gzip data in " + filename);
+                            crc.update(b.data, b.length, n);
+                            b.length += n;
+                            if (b.length == b.data.length) {
+                                blocks.put(b);
+                                b = newBlock();
+                            }
+                        }
+                        in.unread(inflater.getRemaining());
+                        if (in.readInt() != (int)crc.getValue()
+                            || in.readInt() != (int)inflater.getBytesWritten())
+                            throw new IOException("corrupt gzip member in " + filename
+                                                  + " before " + in.position());
+                        if (reachedPart(in.position())) break;
+                    }
+                } finally {
+                    f.close();
+                }
+                if (b.length > 0) blocks.put(b);
+            } catch (InterruptedException ex) {
+                // cancelled
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                inflater.end();
+                try {
+                    if (!cancelled) blocks.put(END_OF_PART);
+                } catch (InterruptedException ex) {
+                    // cancelled
+                }
+            }
+        }
+
+        private boolean reachedPart (long pos) {
+            for (int k=index+1; k<starts.length; k++) {
+                if (starts[k] == pos) {
+                    next = k;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            interrupt();
+        }
+
+    }
+
+    private Block newBlock() {
+        Block b = freeBlocks.poll();
+        if (b == null) return new Block();
+        b.length = 0;
+        return b;
+    }
+
+    /**
+     * Makes the next block current, or returns false at the end.
+     */
+    private boolean nextBlock() throws IOException {
+        if (block != null) freeBlocks.offer(block);
+        block = null;
+        blockPos = 0;
+        while (current < parts.length) {
+            Part p = parts[current];
+            Block b;
+            try {
+                b = p.blocks.take();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            if (b != END_OF_PART) {
+                block = b;
+                return true;
+            }
+            if (p.failure != null) throw new IOException(p.failure);
+            // the parts in between did not start at a member
+            for (int k=current+1; k<p.next; k++) parts[k].cancel();
+            current = p.next;
+        }
+        return false;
+    }
+
+    public int read() throws IOException {
+        if (block == null || blockPos == block.length) {
+            if (!nextBlock()) return -1;
+        }
+        return block.data[blockPos++] & 0xff;
+    }
+
+    public int read (byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (block == null || blockPos == block.length) {
+            if (!nextBlock()) return -1;
+        }
+        int n = Math.min(len, block.length - blockPos);
+        System.arraycopy(block.data, blockPos, b, off, n);
+        blockPos += n;
+        return n;
+    }
+
+    public void close() {
+        for (Part p : parts) p.cancel();
+    }
+
+}
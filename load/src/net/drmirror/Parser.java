@@ -1,9 +1,14 @@
 package net.drmirror;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
 
 import com.mongodb.BasicDBObject;
 
@@ -19,6 +24,38 @@ public abstract class Parser {
     public abstract void parse (String data, int index, BasicDBObject d);
     public abstract int endIndex();
     
+    /**
+     * Writes what parse() would append to d directly into the BSON
+     * document that is currently open in w.
+     */
+    public abstract void encode (String data, int index, BsonBatch w);
+    
+    /**
+     * Switches between the normal form of the output and the compact
+     * one, in which section markers and one-character codes are stored
+     * as numbers (see CompactCodec).
+     */
+    public void setCompact (boolean compact) {
+    }
+    
+    /**
+     * Turns the compact form of what this parser appended to d back
+     * into the normal form.
+     */
+    protected void expand (BSONObject d) {
+    }
+    
+    /**
+     * A parser for the fields within a block, which is what a block is
+     * made of.  Each of these can be compiled into a Program.
+     */
+    public static abstract class FieldParser extends Parser {
+        /**
+         * Adds the instructions that do what this parser does to p.
+         */
+        protected abstract void compileInto (Program p);
+    }
+    
     public static class MasterParser extends Parser {
         private SkippingParser[] parserArray = new SkippingParser[] {
             new BlockParser(
@@ -513,41 +550,250 @@ public abstract class Parser {
             new SkippingParser ("WJ1", 22)
         };
 
-        private Map<String,Parser> parsers = new HashMap<String,Parser>();
+        // The parsers by marker.  A marker is two characters from '0' to 'Z'
+        // and a digit, so it can be used as an index into a dense table,
+        // without creating a String for it.
+        private static final int RANGE = 'Z' - '0' + 1;
+        private SkippingParser[] parsers = new SkippingParser[RANGE * RANGE * 10];
+        
+        static int key (char c0, char c1, char c2) {
+            if (c0 < '0' || c0 > 'Z' || c1 < '0' || c1 > 'Z' || c2 < '0' || c2 > '9') return -1;
+            return ((c0 - '0') * RANGE + (c1 - '0')) * 10 + (c2 - '0');
+        }
+        
+        static int key (String data, int index) {
+            return key (data.charAt(index), data.charAt(index+1), data.charAt(index+2));
+        }
+        
+        /**
+         * Returns the marker for a key, the reverse of key().
+         */
+        static String marker (int key) {
+            return new String (new char[] {
+                (char)('0' + key / 10 / RANGE), (char)('0' + key / 10 % RANGE), (char)('0' + key % 10)
+            });
+        }
+        
+        private SkippingParser lookup (String data, int index) {
+            int k = key (data, index);
+            return k < 0 ? null : parsers[k];
+        }
         
         private void initParserMap() {
             for (SkippingParser bp : parserArray) {
                 String marker = bp.marker();
-                String prefix = marker.substring(0,2);
                 char n = marker.charAt(2);
                 for (char i='1'; i<=n; i++) {
-                    if (!parsers.containsKey(prefix + i))
-                        parsers.put(prefix + i, bp);
+                    int k = key (marker.charAt(0), marker.charAt(1), i);
+                    if (parsers[k] == null)
+                        parsers[k] = bp;
                 }
             }
         }
         
         public MasterParser() {
+            this (false);
+        }
+        
+        /**
+         * If compiled is true, each block is parsed by a flat program
+         * rather than by walking its tree of parsers (see BlockParser).
+         */
+        public MasterParser (boolean compiled) {
             initParserMap();
+            if (compiled) {
+                for (SkippingParser p : parserArray) {
+                    if (p instanceof BlockParser) ((BlockParser)p).compile();
+                }
+            }
+        }
+        
+        // false if the profile leaves out the "sections" list
+        private boolean keepSections = true;
+        
+        private boolean compact = false;
+        
+        public void setCompact (boolean compact) {
+            this.compact = compact;
+            for (SkippingParser p : parserArray) p.setCompact(compact);
+            // including those that were put in place by restrictTo()
+            for (SkippingParser p : parsers) if (p != null) p.setCompact(compact);
+        }
+        
+        /**
+         * Turns the sections and blocks of a record in compact form
+         * back into the normal form.
+         */
+        public void expand (BSONObject d) {
+            Object sections = d.get("sections");
+            if (sections instanceof List) {
+                @SuppressWarnings("unchecked")
+                List<Object> l = (List<Object>)sections;
+                for (int i=0; i<l.size(); i++) {
+                    if (l.get(i) instanceof Integer) l.set(i, marker((Integer)l.get(i)));
+                }
+            }
+            for (SkippingParser p : parserArray) p.expand(d);
+        }
+        
+        /**
+         * Returns the field names of all the blocks.
+         */
+        public Set<String> fieldNames() {
+            Set<String> result = new HashSet<String>();
+            for (SkippingParser p : parserArray) {
+                if (p instanceof BlockParser) result.add(((BlockParser)p).fieldName);
+            }
+            return result;
+        }
+        
+        /**
+         * Skips all blocks whose field names are not in the profile, the
+         * same way as those blocks that have a SkippingParser.
+         */
+        public void restrictTo (FieldProfile profile) {
+            keepSections = profile.contains(FieldProfile.SECTIONS);
+            Map<SkippingParser,SkippingParser> skipping = new HashMap<SkippingParser,SkippingParser>();
+            for (int k=0; k<parsers.length; k++) {
+                if (!(parsers[k] instanceof BlockParser)) continue;
+                BlockParser bp = (BlockParser)parsers[k];
+                if (profile.contains(bp.fieldName)) continue;
+                SkippingParser s = skipping.get(bp);
+                if (s == null) {
+                    s = new SkippingParser(bp.marker(), bp.endIndex());
+                    s.setCompact(compact);
+                    skipping.put(bp, s);
+                }
+                parsers[k] = s;
+            }
         }
         
         public void parse (String data, int index, BasicDBObject d) {
             while (index < data.length()) {
-                Parser currentParser = parsers.get(data.substring(index,index+3));
+                Parser currentParser = lookup(data, index);
                 if (currentParser == null) break;
                 currentParser.parse(data,index,d);
                 index += currentParser.endIndex();
             }
+            if (!keepSections) d.removeField("sections");
         }
         public int endIndex() {
             return -1; // we're the only Parser who doesn't have an endIndex
         }
+        
+        /**
+         * Returns the positions of the sections in data, starting at index,
+         * without parsing them.
+         */
+        public int[] sectionIndex (String data, int index) {
+            int[] result = new int[8];
+            int n = 0;
+            while (index < data.length()) {
+                SkippingParser p = lookup(data, index);
+                if (p == null) break;
+                if (n == result.length) result = Arrays.copyOf(result, n * 2);
+                result[n++] = index;
+                index += p.endIndex();
+            }
+            return Arrays.copyOf(result, n);
+        }
+        
+        /**
+         * Parses only the blocks at the given positions that go into
+         * fieldName, and appends them to d as parse() would.  Returns
+         * false if there are no such blocks.
+         */
+        public boolean parseField (String data, int[] positions, String fieldName, BasicDBObject d) {
+            List<Object> l = null;
+            BasicDBObject last = null;
+            for (int index : positions) {
+                SkippingParser p = lookup(data, index);
+                if (!(p instanceof BlockParser)) continue;
+                BlockParser bp = (BlockParser)p;
+                if (!bp.fieldName.equals(fieldName)) continue;
+                last = bp.parseBlock(data, index);
+                if (bp.multi) {
+                    if (l == null) l = new ArrayList<Object>();
+                    l.add(last);
+                }
+            }
+            if (last == null) return false;
+            d.append(fieldName, l != null ? l : last);
+            return true;
+        }
+        
+        // the sections found by encode(), and where they start
+        private SkippingParser[] found = new SkippingParser[64];
+        private int[] foundAt = new int[64];
+        
+        /**
+         * Since the sections list comes before the blocks in the document,
+         * and the blocks of a multi-block field are collected in a single
+         * list, the sections are located first and the blocks are written
+         * in a second pass.
+         */
+        public void encode (String data, int index, BsonBatch w) {
+            int n = 0;
+            while (index < data.length()) {
+                SkippingParser p = lookup(data, index);
+                if (p == null) break;
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, n * 2);
+                    foundAt = Arrays.copyOf(foundAt, n * 2);
+                }
+                found[n] = p;
+                foundAt[n++] = index;
+                index += p.endIndex();
+            }
+            if (n == 0) return;
+            
+            if (keepSections) {
+                w.startArray("sections");
+                for (int i=0; i<n; i++) {
+                    if (compact) w.putInt(i, key(data, foundAt[i]));
+                    else w.putString(i, data, foundAt[i], foundAt[i]+3);
+                }
+                w.endArray();
+            }
+            
+            for (int i=0; i<n; i++) {
+                if (!(found[i] instanceof BlockParser)) continue;
+                BlockParser bp = (BlockParser)found[i];
+                if (indexOfField(bp.fieldName, 0, n) < i) continue; // already written
+                if (bp.multi) {
+                    w.startArray(bp.fieldName);
+                    int k = 0;
+                    for (int j=i; j<n; j = indexOfField(bp.fieldName, j+1, n)) {
+                        w.startDocument(k++);
+                        found[j].encode(data, foundAt[j], w);
+                        w.endDocument();
+                    }
+                    w.endArray();
+                } else {
+                    // like BasicDBObject.append(), a repeated field keeps the last value
+                    int last = i;
+                    for (int j=i; j<n; j = indexOfField(bp.fieldName, j+1, n)) last = j;
+                    w.startDocument(bp.fieldName);
+                    found[last].encode(data, foundAt[last], w);
+                    w.endDocument();
+                }
+            }
+        }
+        
+        private int indexOfField (String fieldName, int from, int n) {
+            for (int i=from; i<n; i++) {
+                if (found[i] instanceof BlockParser
+                    && ((BlockParser)found[i]).fieldName.equals(fieldName)) return i;
+            }
+            return n;
+        }
                   
     }
 
     public static class SkippingParser extends Parser {
         protected String marker;
         protected int endIndex;
+        protected boolean compact = false;
         public SkippingParser (String marker, int endIndex) {
             this.marker = marker;
             this.endIndex = endIndex;
@@ -556,6 +802,12 @@ public abstract class Parser {
             appendSection (data, index, d);
             // don't actually parse anything, that's done in the subclass
         }
+        public void encode (String data, int index, BsonBatch w) {
+            // the section is written by the MasterParser
+        }
+        public void setCompact (boolean compact) {
+            this.compact = compact;
+        }
         public String marker() {
             return marker;
         }
@@ -563,36 +815,75 @@ public abstract class Parser {
             return endIndex;
         }
         protected void appendSection (String data, int index, BasicDBObject d) {
+            // only ever holds what we put there
+            @SuppressWarnings("unchecked")
             List<Object> sections = (List<Object>)d.get("sections");
             if (sections == null) {
                 sections = new ArrayList<Object>();
                 d.append("sections",sections);
             }
-            sections.add(data.substring(index,index+3));
+            if (compact) {
+                sections.add(MasterParser.key(data, index));
+            } else {
+                sections.add(data.substring(index,index+3));
+            }
         }
     }
     
     public static class BlockParser extends SkippingParser {
         private boolean multi;
         private String fieldName;
-        private List<Parser> parsers = new ArrayList<Parser>();
+        private List<FieldParser> parsers = new ArrayList<FieldParser>();
+        private Program program = null;
 
-        public BlockParser (String marker, String fieldName, Parser... p) {
+        public BlockParser (String marker, String fieldName, FieldParser... p) {
             super (marker, -1);
             this.multi = marker.charAt(2) > '1';
             this.fieldName = fieldName;
-            for (Parser x : p) {
+            for (FieldParser x : p) {
                 if(x.endIndex() > this.endIndex) this.endIndex = x.endIndex();
                 parsers.add(x);
             }
         }
-        public void parse (String data, int index, BasicDBObject d) {
-            appendSection(data,index,d);
+        /**
+         * From now on, parse this block with a Program rather than with
+         * the tree of parsers.
+         */
+        public void compile() {
+            program = new Program();
+            for (FieldParser x : parsers) x.compileInto(program);
+        }
+        public void setCompact (boolean compact) {
+            super.setCompact(compact);
+            for (Parser x : parsers) x.setCompact(compact);
+            if (program != null) compile();
+        }
+        protected void expand (BSONObject d) {
+            Object x = d.get(fieldName);
+            if (x instanceof List) {
+                for (Object o : (List<?>)x) {
+                    for (Parser p : parsers) p.expand((BSONObject)o);
+                }
+            } else if (x instanceof BSONObject) {
+                for (Parser p : parsers) p.expand((BSONObject)x);
+            }
+        }
+        /**
+         * Returns the fields of the block at index.
+         */
+        public BasicDBObject parseBlock (String data, int index) {
+            if (program != null) return program.parse(data, index);
             BasicDBObject result = new BasicDBObject();
             for (Parser p : parsers) {
                 p.parse (data, index, result);
             }
+            return result;
+        }
+        public void parse (String data, int index, BasicDBObject d) {
+            appendSection(data,index,d);
+            BasicDBObject result = parseBlock(data, index);
             if (multi) {
+                @SuppressWarnings("unchecked")
                 List<Object> l = (List<Object>)d.get(fieldName);
                 if (l == null) {
                     l = new ArrayList<Object>();
@@ -603,15 +894,28 @@ public abstract class Parser {
                 d.append(fieldName,result);
             }
         }
+        /**
+         * Writes the fields of this block into the open document; the
+         * MasterParser takes care of where that document goes.
+         */
+        public void encode (String data, int index, BsonBatch w) {
+            if (program != null) {
+                program.encode(data, index, w);
+                return;
+            }
+            for (Parser p : parsers) {
+                p.encode (data, index, w);
+            }
+        }
     }
     
-    public static class GroupParser extends Parser {
+    public static class GroupParser extends FieldParser {
         private String fieldName;
-        private List<Parser> parsers = new ArrayList<Parser>();
+        private List<FieldParser> parsers = new ArrayList<FieldParser>();
         private int endIndex = -1;
-        public GroupParser (String fieldName, Parser... p) {
+        public GroupParser (String fieldName, FieldParser... p) {
             this.fieldName = fieldName;
-            for (Parser x : p) {
+            for (FieldParser x : p) {
                 if (x.endIndex() > endIndex) endIndex = x.endIndex();
                 parsers.add(x);
             }
@@ -621,12 +925,31 @@ public abstract class Parser {
             d.append(fieldName, x);
             for (Parser p : parsers) p.parse (data, index, x);
         }
+        public void encode (String data, int index, BsonBatch w) {
+            w.startDocument(fieldName);
+            for (Parser p : parsers) p.encode (data, index, w);
+            w.endDocument();
+        }
+        public void setCompact (boolean compact) {
+            for (Parser x : parsers) x.setCompact(compact);
+        }
+        protected void expand (BSONObject d) {
+            Object x = d.get(fieldName);
+            if (x instanceof BSONObject) {
+                for (Parser p : parsers) p.expand((BSONObject)x);
+            }
+        }
+        protected void compileInto (Program p) {
+            p.add(Program.OPEN, fieldName, 0, 0, 0);
+            for (FieldParser x : parsers) x.compileInto(p);
+            p.add(Program.CLOSE, null, 0, 0, 0);
+        }
         public int endIndex() {
             return endIndex;
         }
     }
     
-    public static abstract class ValueParser extends Parser {
+    public static abstract class ValueParser extends FieldParser {
         protected int startIndex, endIndex;
         protected String fieldName;
         protected ValueParser (String fieldName, int startIndex, int endIndex) {
@@ -639,11 +962,34 @@ public abstract class Parser {
     }
     
     public static class CodeParser extends ValueParser {
+        // one-character codes are stored as the character's value
+        private boolean compact = false;
         public CodeParser (String fieldName, int startIndex, int endIndex) {
             super (fieldName, startIndex, endIndex);
         }
+        public void setCompact (boolean compact) {
+            this.compact = compact && endIndex - startIndex == 1;
+        }
         public void parse (String data, int index, BasicDBObject d) {
-            d.append(fieldName, data.substring(index+startIndex,index+endIndex));
+            if (compact) {
+                d.append(fieldName, (int)data.charAt(index+startIndex));
+            } else {
+                d.append(fieldName, data.substring(index+startIndex,index+endIndex));
+            }
+        }
+        public void encode (String data, int index, BsonBatch w) {
+            if (compact) {
+                w.putInt(fieldName, data.charAt(index+startIndex));
+            } else {
+                w.putString(fieldName, data, index+startIndex, index+endIndex);
+            }
+        }
+        protected void expand (BSONObject d) {
+            Object x = d.get(fieldName);
+            if (x instanceof Integer) d.put(fieldName, String.valueOf((char)(int)(Integer)x));
+        }
+        protected void compileInto (Program p) {
+            p.add(compact ? Program.CHAR : Program.CODE, fieldName, startIndex, endIndex, 0);
         }
     }
     
@@ -664,6 +1010,123 @@ public abstract class Parser {
                 d.append (fieldName, (double)value / (double)scalingFactor);
             }
         }
+        public void encode (String data, int index, BsonBatch w) {
+            int value = Util.parseInt(data, index+startIndex, index+endIndex);
+            if (value == Util.NOT_A_NUMBER)
+                throw new NumberFormatException(data.substring(index+startIndex, index+endIndex));
+            if (scalingFactor == 1) {
+                w.putInt(fieldName, value);
+            } else {
+                w.putDouble (fieldName, (double)value / (double)scalingFactor);
+            }
+        }
+        protected void compileInto (Program p) {
+            if (scalingFactor == 1) {
+                p.add(Program.INT, fieldName, startIndex, endIndex, 0);
+            } else {
+                p.add(Program.SCALED, fieldName, startIndex, endIndex, scalingFactor);
+            }
+        }
+    }
+    
+    /**
+     * The tree of parsers for a block, flattened into a list of
+     * instructions.  Running the list is a single loop over arrays,
+     * without the virtual calls and the recursion through the tree,
+     * which is about what hand-written code for the block would do.
+     */
+    public static class Program {
+        static final int CODE = 0, INT = 1, SCALED = 2, OPEN = 3, CLOSE = 4, CHAR = 5;
+        
+        private int n = 0;
+        private int[] op = new int[8];
+        private String[] name = new String[8];
+        private int[] start = new int[8];
+        private int[] end = new int[8];
+        private double[] scale = new double[8];
+        
+        private BasicDBObject[] stack = new BasicDBObject[8];
+        
+        void add (int o, String fieldName, int startIndex, int endIndex, double scalingFactor) {
+            if (n == op.length) {
+                op = Arrays.copyOf(op, n * 2);
+                name = Arrays.copyOf(name, n * 2);
+                start = Arrays.copyOf(start, n * 2);
+                end = Arrays.copyOf(end, n * 2);
+                scale = Arrays.copyOf(scale, n * 2);
+            }
+            op[n] = o;
+            name[n] = fieldName;
+            start[n] = startIndex;
+            end[n] = endIndex;
+            scale[n++] = scalingFactor;
+        }
+        
+        public BasicDBObject parse (String data, int index) {
+            BasicDBObject result = new BasicDBObject();
+            BasicDBObject d = result;
+            int depth = 0;
+            for (int i=0; i<n; i++) {
+                switch (op[i]) {
+                case CODE:
+                    d.append(name[i], data.substring(index+start[i], index+end[i]));
+                    break;
+                case CHAR:
+                    d.append(name[i], (int)data.charAt(index+start[i]));
+                    break;
+                case INT:
+                    d.append(name[i], number(data, index+start[i], index+end[i]));
+                    break;
+                case SCALED:
+                    d.append(name[i], (double)number(data, index+start[i], index+end[i]) / scale[i]);
+                    break;
+                case OPEN:
+                    if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = d;
+                    BasicDBObject x = new BasicDBObject();
+                    d.append(name[i], x);
+                    d = x;
+                    break;
+                case CLOSE:
+                    d = stack[--depth];
+                    stack[depth] = null;
+                    break;
+                }
+            }
+            return result;
+        }
+        
+        public void encode (String data, int index, BsonBatch w) {
+            for (int i=0; i<n; i++) {
+                switch (op[i]) {
+                case CODE:
+                    w.putString(name[i], data, index+start[i], index+end[i]);
+                    break;
+                case CHAR:
+                    w.putInt(name[i], data.charAt(index+start[i]));
+                    break;
+                case INT:
+                    w.putInt(name[i], number(data, index+start[i], index+end[i]));
+                    break;
+                case SCALED:
+                    w.putDouble(name[i], (double)number(data, index+start[i], index+end[i]) / scale[i]);
+                    break;
+                case OPEN:
+                    w.startDocument(name[i]);
+                    break;
+                case CLOSE:
+                    w.endDocument();
+                    break;
+                }
+            }
+        }
+        
+        private static int number (String data, int start, int end) {
+            int value = Util.parseInt(data, start, end);
+            if (value == Util.NOT_A_NUMBER)
+                throw new NumberFormatException(data.substring(start, end));
+            return value;
+        }
     }
     
     public static void main (String[] args) {
@@ -0,0 +1,231 @@
+package net.drmirror;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * A staged variant of the loading process.  Rather than having each
+ * thread read, parse, and insert one file after the other, the work is
+ * split into three stages that run at the same time:
+ *
+ *  - readers take files from the FilePool, decompress them, and cut
+ *    them into chunks of complete lines,
+ *  - parsers turn these chunks into batches of documents,
+ *  - writers send the batches to the database, or another Sink.
+ *
+ * Each stage has its own number of threads, so parsers can be sized to
+ * the number of cores and writers to what the server can take.  The
+ * stages are connected by bounded queues, which means a slow stage
+ * blocks the ones before it rather than letting memory fill up.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Pipeline {
+
+    private static final Chunk END_OF_CHUNKS = new Chunk(null, 0, ByteBuffer.allocate(0), 0);
+    private static final Batch END_OF_BATCHES = new DocumentBatch(0);
+
+    private DataLoader loader;
+    private Sink sink;
+    private DataLoader.FilePool pool;
+    private Checkpoint checkpoint;
+    private BatchSizer sizer;
+    private LoadMetrics metrics;
+    private FlatProjection projection;
+
+    private BlockingQueue<Chunk> chunks;
+    private BlockingQueue<Batch> batches;
+
+    private List<Stage> stages = new ArrayList<Stage>();
+    private AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    public Pipeline (DataLoader loader, DataLoader.FilePool pool, int queueSize) {
+        this.loader = loader;
+        this.sink = loader.getSink();
+        this.pool = pool;
+        this.checkpoint = loader.getCheckpoint();
+        this.sizer = loader.getSizer();
+        this.metrics = loader.getMetrics();
+        this.projection = loader.getProjection();
+        this.chunks = new ArrayBlockingQueue<Chunk>(queueSize);
+        this.batches = new ArrayBlockingQueue<Batch>(queueSize);
+        metrics.addQueue("chunks", chunks);
+        metrics.addQueue("batches", batches);
+    }
+
+    /**
+     * Runs the pipeline until all files from the pool have been loaded.
+     * If any stage fails, all stages are stopped and the failure is
+     * rethrown here.
+     */
+    public void run (int numReaders, int numParsers, int numWriters) throws InterruptedException {
+        List<Stage> readers = new ArrayList<Stage>();
+        List<Stage> parsers = new ArrayList<Stage>();
+        List<Stage> writers = new ArrayList<Stage>();
+        for (int i=0; i<numReaders; i++) readers.add(new Reader("reader-" + i));
+        for (int i=0; i<numParsers; i++) parsers.add(new ParserStage("parser-" + i));
+        for (int i=0; i<numWriters; i++) writers.add(new Writer("writer-" + i));
+        stages.addAll(readers);
+        stages.addAll(parsers);
+        stages.addAll(writers);
+
+        for (Stage s : stages) s.start();
+
+        for (Stage s : readers) s.join();
+        endOfStage (chunks, END_OF_CHUNKS, numParsers);
+        for (Stage s : parsers) s.join();
+        endOfStage (batches, END_OF_BATCHES, numWriters);
+        for (Stage s : writers) s.join();
+
+        if (failure.get() != null) throw new RuntimeException(failure.get());
+    }
+
+    private <T> void endOfStage (BlockingQueue<T> queue, T marker, int consumers)
+      throws InterruptedException {
+        for (int i=0; i<consumers; i++) {
+            while (!queue.offer(marker, 100, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) return;
+            }
+        }
+    }
+
+    private abstract class Stage extends Thread {
+        protected LoadMetrics.ThreadMetrics stats;
+        protected Stage (String name) {
+            super(name);
+            stats = metrics.register(name);
+        }
+        public void run() {
+            try {
+                work();
+            } catch (InterruptedException ex) {
+                // we are being shut down because another stage failed
+            } catch (Throwable t) {
+                if (failure.compareAndSet(null, t)) {
+                    for (Stage s : stages) if (s != this) s.interrupt();
+                }
+            }
+        }
+        protected abstract void work() throws Exception;
+    }
+
+    private class Reader extends Stage implements ChunkReader.ChunkHandler {
+
+        private Checkpoint.Progress progress;
+
+        public Reader (String name) {
+            super(name);
+        }
+
+        protected void work() throws Exception {
+            while (true) {
+                String filename = pool.getFile();
+                if (filename == null) break;
+                if (checkpoint.isDone(filename)) {
+                    ChunkReader.skip(filename);
+                    System.out.println(filename + " ...skipped");
+                    continue;
+                }
+                System.out.println(filename);
+                progress = checkpoint.start(filename);
+                ChunkReader.readFile (filename, this);
+                progress.release();
+                System.out.println(filename + " ...read");
+            }
+        }
+
+        public void chunk (Chunk c) throws InterruptedException {
+            // released by the parser when it is through with the chunk
+            c.progress = progress;
+            progress.retain();
+            stats.add(0, c.length);
+            chunks.put(c);
+        }
+
+    }
+
+    private class ParserStage extends Stage implements Chunk.LineHandler {
+
+        private RecordParser parser = loader.newParser();
+        private Batch batch = loader.newBatch(sizer.getBatchSize());
+        private Chunk current;
+
+        public ParserStage (String name) {
+            super(name);
+        }
+
+        protected void work() throws Exception {
+            while (true) {
+                Chunk c = chunks.take();
+                if (c == END_OF_CHUNKS) break;
+                current = c;
+                c.lines(this);
+                c.progress.release();
+                ChunkReader.recycle(c);
+            }
+            if (batch.size() > 0) batches.put(batch);
+        }
+
+        public void line (ByteBuffer data, int offset, int length) {
+            long pos = current.offset + offset;
+            if (checkpoint.isLoaded(current.file, pos)) return;
+            batch.track(current.progress, current.file, pos, pos + length);
+            long start = System.nanoTime();
+            batch.add(parser, data, offset, length);
+            if (projection != null) {
+                BasicDBObject f = parser.flatten(data);
+                if (f != null) batch.addFlattened(f);
+            }
+            if (batch.getRollups() != null) parser.rollup(data, batch.getRollups());
+            if (batch.getSummaries() != null) parser.summarize(data, batch.getSummaries());
+            metrics.parsed(stats, length, System.nanoTime() - start);
+            if (sizer.isFull(batch)) {
+                try {
+                    batches.put(batch);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                batch = loader.newBatch(sizer.getBatchSize());
+            }
+        }
+
+    }
+
+    private class Writer extends Stage {
+
+        public Writer (String name) {
+            super(name);
+        }
+
+        protected void work() throws Exception {
+            while (true) {
+                Batch batch = batches.take();
+                if (batch == END_OF_BATCHES) break;
+                long start = System.nanoTime();
+                try {
+                    sink.write(batch);
+                } catch (RuntimeException ex) {
+                    throw new RuntimeException("insert failed for " + batch, ex);
+                }
+                long nanos = System.nanoTime() - start;
+                sizer.inserted(batch, nanos);
+                metrics.written(nanos);
+                stats.add(batch.size(), batch.bytes());
+                if (projection != null) projection.write(batch);
+                if (batch.getRollups() != null) batch.getRollups().flush();
+                if (batch.getSummaries() != null) batch.getSummaries().flush();
+                batch.acknowledged(checkpoint);
+                batch.recycle();
+            }
+        }
+
+    }
+
+}
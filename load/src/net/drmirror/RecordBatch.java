@@ -0,0 +1,21 @@
+package net.drmirror;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A batch that holds one document per record, as DocumentBatch and
+ * BsonBatch do.  Only such a batch can be written to a file, since a
+ * BucketBatch fills its buckets by upserts (see Sink.BsonFile).
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public abstract class RecordBatch extends Batch {
+
+    /**
+     * Writes the records as concatenated BSON documents, the way that
+     * mongorestore reads them.
+     */
+    public abstract void writeTo (OutputStream out) throws IOException;
+
+}
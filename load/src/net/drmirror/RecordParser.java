@@ -0,0 +1,411 @@
+package net.drmirror;
+
+import static net.drmirror.Util.NOT_A_NUMBER;
+import static net.drmirror.Util.code;
+import static net.drmirror.Util.createPoint;
+import static net.drmirror.Util.string;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * This parses and converts the static part of a weather record.
+ * The optional parts are handled by the separate Parser class
+ * that is used by this one.
+ *
+ * The fixed-width fields are decoded straight from the bytes of the
+ * line: numbers and the timestamp are computed arithmetically, and
+ * Strings are only created for values that end up in the document.
+ * The station id and position are kept from one record to the next
+ * (see StationCache).
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class RecordParser {
+
+    private Parser.MasterParser addParser;
+
+    // store the additional data as it is, see AdditionalData
+    private boolean lazyAdd = false;
+
+    // store codes as numbers, see CompactCodec
+    private boolean compact = false;
+
+    // the fields to materialize, or null for all of them
+    private FieldProfile profile = null;
+    private boolean keepBlocks = true;
+
+    public RecordParser() {
+        this (false);
+    }
+
+    /**
+     * If compiled is true, the additional sections are parsed by
+     * compiled programs (see Parser.Program).
+     */
+    public RecordParser (boolean compiled) {
+        addParser = new Parser.MasterParser(compiled);
+    }
+
+    /**
+     * If lazyAdd is true, the additional sections are not parsed.  The
+     * record then holds them as a single string, plus the positions of
+     * the sections within it, from which AdditionalData can parse any
+     * block later.
+     */
+    public void setLazyAdd (boolean lazyAdd) {
+        this.lazyAdd = lazyAdd;
+    }
+
+    /**
+     * If compact is true, section markers and one-character codes are
+     * stored as numbers (see CompactCodec).
+     */
+    public void setCompact (boolean compact) {
+        this.compact = compact;
+        addParser.setCompact(compact);
+    }
+
+    /**
+     * Leaves out all fields and blocks that are not in the profile.
+     */
+    public void setProfile (FieldProfile profile) {
+        this.profile = profile;
+        addParser.restrictTo(profile);
+        keepBlocks = false;
+        for (String f : profile.fields()) {
+            if (!FieldProfile.MANDATORY_FIELDS.contains(f)) keepBlocks = true;
+        }
+    }
+
+    private boolean keep (String field) {
+        return profile == null || profile.contains(field);
+    }
+
+    public BasicDBObject parseRecord (String line) {
+        byte[] b = line.getBytes(StandardCharsets.ISO_8859_1);
+        return parseRecord (ByteBuffer.wrap(b), 0, b.length);
+    }
+
+    private TimestampDecoder timestamps = new TimestampDecoder();
+    private StationCache stations = new StationCache();
+
+    // the fields of the record that was decoded last
+    private int o;
+    private boolean hasUsaf, hasWban;
+    private long ts;
+    private int lat, lon, elev;
+    private int typeStart, typeEnd, callStart, callEnd;
+    private double temp, dew, press, ws;
+    private int wd, skyh, visd;
+    private boolean hasAdd;
+    private int end;
+
+    private void decode (ByteBuffer b, int offset, int length) {
+        o = offset;
+        end = offset + length;
+
+        hasUsaf = !isAll (b, o+4, o+10, '9');
+        hasWban = !isAll (b, o+10, o+15, '9');
+        ts = timestamps.decode (b, o+15);
+        lat = Util.parseInt(b, o+28, o+34);
+        lon = Util.parseInt(b, o+34, o+41);
+        stations.update (b, o);
+
+        typeStart = trimStart(b, o+41, o+46);
+        typeEnd = trimEnd(b, typeStart, o+46);
+        elev = number(b, o+46, o+51);
+
+        callStart = trimStart(b, o+51, o+56);
+        callEnd = trimEnd(b, callStart, o+56);
+
+        temp = (double)number(b, o+87, o+92) / 10.0;
+        dew = (double)number(b, o+93, o+98) / 10.0;
+        press = (double)number(b, o+99, o+104) / 10.0;
+
+        wd = number(b, o+60, o+63);
+        ws = (double)number(b, o+65, o+69) / 10.0;
+
+        skyh = number(b, o+70, o+75);
+        visd = number(b, o+78, o+84);
+
+        hasAdd = length > 108 && b.get(o+105) == 'A' && b.get(o+106) == 'D' && b.get(o+107) == 'D';
+    }
+
+    private String stationId (ByteBuffer b) {
+        String st = stations.getStationId();
+        if (st == null) {
+            st = hasUsaf ? "u" + string(b, o+4, o+10)
+               : hasWban ? "w" + string(b, o+10, o+15)
+               : "x" + string(b, o+28, o+41);
+            stations.setStationId(st);
+        }
+        return st;
+    }
+
+    private BasicDBObject point() {
+        BasicDBObject p = stations.getPoint();
+        if (p == null) {
+            p = createPoint(lon, lat);
+            stations.setPoint(p);
+        }
+        return p;
+    }
+
+    private void putPoint (BsonBatch w) {
+        byte[] p = stations.getEncodedPoint();
+        if (p != null) {
+            w.putEncoded(p);
+            return;
+        }
+        int mark = w.mark();
+        w.startDocument("position");
+        w.putString("type", "Point");
+        w.startArray("coordinates");
+        w.putDouble(0, lon/1000.0);
+        w.putDouble(1, lat/1000.0);
+        w.endArray();
+        w.endDocument();
+        stations.setEncodedPoint(w.copy(mark));
+    }
+
+    public BasicDBObject parseRecord (ByteBuffer b, int offset, int length) {
+        decode (b, offset, length);
+
+        BasicDBObject d = new BasicDBObject();
+        if (keep("st")) d.append("st", stationId(b));
+        if (keep("ts")) d.append("ts", new Date(ts));
+        if (hasUsaf && keep("usaf")) d.append("usaf", string(b, o+4, o+10));
+        if (hasWban && keep("wban")) d.append("wban", string(b, o+10, o+15));
+        if (keep("position")) {
+            BasicDBObject p = point();
+            if (p != null) d.append ("position", p);
+        }
+        if (keep("elevation")) d.append("elevation", elev);
+        if (keep("callLetters")) d.append("callLetters", string(b, callStart, callEnd));
+        if (keep("qualityControlProcess")) d.append("qualityControlProcess", string(b, o+56, o+60));
+
+        if (keep("dataSource")) d.append("dataSource", codeValue(b, o+27));
+        if (keep("type")) d.append ("type", string(b, typeStart, typeEnd));
+
+        if (keep("airTemperature"))
+            d.append("airTemperature", new BasicDBObject("value",temp).append("quality",codeValue(b, o+92)));
+        if (keep("dewPoint"))
+            d.append("dewPoint", new BasicDBObject("value",dew).append("quality",codeValue(b, o+98)));
+        if (keep("pressure"))
+            d.append("pressure", new BasicDBObject("value",press).append("quality", codeValue(b, o+104)));
+        if (keep("wind"))
+            d.append("wind", new BasicDBObject("direction",
+                               new BasicDBObject("angle", wd).append("quality",codeValue(b, o+63)))
+                            .append("type",codeValue(b, o+64))
+                            .append("speed",new BasicDBObject ("rate",ws)
+                                                  .append("quality",codeValue(b, o+69))));
+        if (keep("visibility"))
+            d.append("visibility", new BasicDBObject("distance",
+                                     new BasicDBObject ("value", visd)
+                                         . append ("quality", codeValue(b, o+84)))
+                                    .append ("variability",
+                                       new BasicDBObject("value", codeValue(b, o+85))
+                                         .append("quality", codeValue(b, o+86))));
+        if (keep("skyCondition"))
+            d.append("skyCondition", new BasicDBObject("ceilingHeight",
+                                       new BasicDBObject("value", skyh)
+                                        .append("quality", codeValue(b, o+75))
+                                        .append("determination", codeValue(b, o+76)))
+                                     .append("cavok", codeValue(b, o+77)));
+
+        if (hasAdd) {
+            if (lazyAdd) {
+                String add = string(b, o+108, o+length);
+                d.append(AdditionalData.DATA, add);
+                d.append(AdditionalData.INDEX, addParser.sectionIndex(add, 0));
+            } else if (keepBlocks) {
+                addParser.parse(string(b, o+105, o+length), 3, d);
+            }
+        }
+
+        return d;
+    }
+
+    /**
+     * Encodes a record into the given batch, in the same shape as the
+     * document returned by parseRecord(), plus a generated _id.
+     */
+    public void encodeRecord (ByteBuffer b, int offset, int length, BsonBatch w) {
+        decode (b, offset, length);
+
+        w.startDocument();
+        w.putObjectId("_id");
+        if (keep("st")) w.putString("st", stationId(b));
+        if (keep("ts")) w.putDate("ts", ts);
+        if (hasUsaf && keep("usaf")) w.putString("usaf", b, o+4, o+10);
+        if (hasWban && keep("wban")) w.putString("wban", b, o+10, o+15);
+        if (Util.isPoint(lon, lat) && keep("position")) putPoint(w);
+        if (keep("elevation")) w.putInt("elevation", elev);
+        if (keep("callLetters")) w.putString("callLetters", b, callStart, callEnd);
+        if (keep("qualityControlProcess")) w.putString("qualityControlProcess", b, o+56, o+60);
+        if (keep("dataSource")) putCode(w, "dataSource", b, o+27);
+        if (keep("type")) w.putString("type", b, typeStart, typeEnd);
+
+        if (keep("airTemperature")) {
+            w.startDocument("airTemperature");
+            w.putDouble("value", temp);
+            putCode(w, "quality", b, o+92);
+            w.endDocument();
+        }
+        if (keep("dewPoint")) {
+            w.startDocument("dewPoint");
+            w.putDouble("value", dew);
+            putCode(w, "quality", b, o+98);
+            w.endDocument();
+        }
+        if (keep("pressure")) {
+            w.startDocument("pressure");
+            w.putDouble("value", press);
+            putCode(w, "quality", b, o+104);
+            w.endDocument();
+        }
+
+        if (keep("wind")) {
+            w.startDocument("wind");
+            w.startDocument("direction");
+            w.putInt("angle", wd);
+            putCode(w, "quality", b, o+63);
+            w.endDocument();
+            putCode(w, "type", b, o+64);
+            w.startDocument("speed");
+            w.putDouble("rate", ws);
+            putCode(w, "quality", b, o+69);
+            w.endDocument();
+            w.endDocument();
+        }
+
+        if (keep("visibility")) {
+            w.startDocument("visibility");
+            w.startDocument("distance");
+            w.putInt("value", visd);
+            putCode(w, "quality", b, o+84);
+            w.endDocument();
+            w.startDocument("variability");
+            putCode(w, "value", b, o+85);
+            putCode(w, "quality", b, o+86);
+            w.endDocument();
+            w.endDocument();
+        }
+
+        if (keep("skyCondition")) {
+            w.startDocument("skyCondition");
+            w.startDocument("ceilingHeight");
+            w.putInt("value", skyh);
+            putCode(w, "quality", b, o+75);
+            putCode(w, "determination", b, o+76);
+            w.endDocument();
+            putCode(w, "cavok", b, o+77);
+            w.endDocument();
+        }
+
+        if (hasAdd) {
+            if (lazyAdd) {
+                String add = string(b, o+108, o+length);
+                w.putString(AdditionalData.DATA, add);
+                w.startArray(AdditionalData.INDEX);
+                int[] index = addParser.sectionIndex(add, 0);
+                for (int i=0; i<index.length; i++) w.putInt(i, index[i]);
+                w.endArray();
+            } else if (keepBlocks) {
+                addParser.encode(string(b, o+105, o+length), 3, w);
+            }
+        }
+
+        w.endDocument();
+    }
+
+    /**
+     * Returns the record that was parsed last as a flat document with
+     * the fields that the visualization needs: time, longitude, latitude,
+     * both as a coordinate pair, air temperature, and the conditions of
+     * the present weather observations (or null).  These are the records
+     * that scripts/flatten-data.js makes.  Like the script, this returns
+     * null if the temperature is not valid or the position is missing
+     * or (0,0).
+     */
+    public BasicDBObject flatten (ByteBuffer b) {
+        if (b.get(o+92) != '1' || !Util.isPoint(lon, lat) || (lon == 0 && lat == 0)) return null;
+        double x = lon / 1000.0, y = lat / 1000.0;
+        List<String> w = null;
+        if (hasAdd) {
+            String add = string(b, o+108, end);
+            for (int i : addParser.sectionIndex(add, 0)) {
+                if (add.startsWith("AW", i)) {
+                    if (w == null) w = new ArrayList<String>();
+                    w.add(add.substring(i+3, i+5));
+                }
+            }
+        }
+        return new BasicDBObject("t", new Date(ts))
+            .append("x", x)
+            .append("y", y)
+            .append("c", Arrays.asList(x, y))
+            .append("a", temp)
+            .append("w", w);
+    }
+
+    /**
+     * Adds the record that was parsed last to the daily rollups of its
+     * station, with those values that have quality 1.
+     */
+    public void rollup (ByteBuffer b, Rollups r) {
+        Rollups.Day d = r.day(stationId(b), ts);
+        if (b.get(o+92) == '1') d.add(Rollups.TEMPERATURE, temp);
+        if (b.get(o+98) == '1') d.add(Rollups.DEW_POINT, dew);
+        if (b.get(o+104) == '1') d.add(Rollups.PRESSURE, press);
+        if (b.get(o+69) == '1') d.add(Rollups.WIND_SPEED, ws);
+    }
+
+    /**
+     * Adds the record that was parsed last to the summary of its station.
+     */
+    public void summarize (ByteBuffer b, StationSummaries s) {
+        s.get(stationId(b)).add(ts, number(b, o+15, o+19), Util.isPoint(lon, lat), lon, lat);
+    }
+
+    private Object codeValue (ByteBuffer b, int i) {
+        return compact ? (Object)(b.get(i) & 0xff) : code(b, i);
+    }
+
+    private void putCode (BsonBatch w, String name, ByteBuffer b, int i) {
+        if (compact) w.putInt(name, b.get(i) & 0xff);
+        else w.putString(name, b, i, i+1);
+    }
+
+    private static int number (ByteBuffer b, int start, int end) {
+        int result = Util.parseInt(b, start, end);
+        if (result == NOT_A_NUMBER)
+            throw new NumberFormatException("not a number: " + string(b, start, end));
+        return result;
+    }
+
+    private static int trimStart (ByteBuffer b, int start, int end) {
+        while (start < end && (b.get(start) & 0xff) <= ' ') start++;
+        return start;
+    }
+
+    private static int trimEnd (ByteBuffer b, int start, int end) {
+        while (end > start && (b.get(end-1) & 0xff) <= ' ') end--;
+        return end;
+    }
+
+    private static boolean isAll (ByteBuffer b, int start, int end, char c) {
+        for (int i=start; i<end; i++) {
+            if (b.get(i) != c) return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,127 @@
+package net.drmirror;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+/**
+ * Daily aggregates per station, computed while the data is parsed
+ * (see RecordParser.rollup()).  For each station and day, the rollup
+ * collection holds the number of observations, and the count, sum,
+ * minimum and maximum of the values of quality 1 of each measure:
+ *
+ *   { _id: { st: "u010230", day: <start of the day, UTC> },
+ *     n: <number of observations>,
+ *     airTemperature: { n: 24, sum: 31.2, min: -3.1, max: 4.6 },
+ *     dewPoint: ..., pressure: ..., windSpeed: ... }
+ *
+ * A measure without any valid value on that day is missing.  The mean
+ * is sum / n, and monthly figures are an aggregation over the days.
+ *
+ * Each Batch carries the rollups of its own records, which are flushed
+ * after the batch itself has been written, and before its lines are
+ * entered into the Checkpoint.  The flush adds to what is already in
+ * the collection, so a day that is spread over several batches, files
+ * or threads comes out right.  After a --resume, the rollups therefore
+ * cover the same lines as the data: those of the acknowledged batches
+ * were added, the others are added when their lines are loaded again.
+ * As with the data itself, only a batch that was in flight when the
+ * load failed may be counted twice.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Rollups {
+
+    public static final int TEMPERATURE = 0;
+    public static final int DEW_POINT = 1;
+    public static final int PRESSURE = 2;
+    public static final int WIND_SPEED = 3;
+
+    private static final String[] MEASURES = {
+        "airTemperature", "dewPoint", "pressure", "windSpeed"
+    };
+
+    public static class Day {
+        private String st;
+        private long day;
+        private int n = 0;
+        private int[] count = new int[MEASURES.length];
+        private double[] sum = new double[MEASURES.length];
+        private double[] min = new double[MEASURES.length];
+        private double[] max = new double[MEASURES.length];
+
+        private Day (String st, long day) {
+            this.st = st;
+            this.day = day;
+        }
+
+        public void add (int measure, double value) {
+            if (count[measure] == 0 || value < min[measure]) min[measure] = value;
+            if (count[measure] == 0 || value > max[measure]) max[measure] = value;
+            count[measure]++;
+            sum[measure] += value;
+        }
+    }
+
+    private DBCollection collection;
+    private Map<String,Day> days = new HashMap<String,Day>();
+
+    // records usually come in order, so this is mostly the one we need
+    private Day last = null;
+
+    public Rollups (DBCollection collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * Returns the aggregates of the station on the day that contains
+     * the given time, and counts one observation in them.
+     */
+    public Day day (String st, long ts) {
+        long day = Buckets.Granularity.DAY.start(ts);
+        Day d = last;
+        if (d == null || d.day != day || !d.st.equals(st)) {
+            String key = st + day;
+            d = days.get(key);
+            if (d == null) {
+                d = new Day(st, day);
+                days.put(key, d);
+            }
+            last = d;
+        }
+        d.n++;
+        return d;
+    }
+
+    /**
+     * Adds the aggregates to the collection and starts over.
+     */
+    public void flush() {
+        if (days.isEmpty()) return;
+        Upserts op = new Upserts(collection);
+        for (Day d : days.values()) {
+            BasicDBObject inc = new BasicDBObject("n", d.n);
+            BasicDBObject min = new BasicDBObject();
+            BasicDBObject max = new BasicDBObject();
+            for (int m=0; m<MEASURES.length; m++) {
+                if (d.count[m] == 0) continue;
+                inc.append(MEASURES[m] + ".n", d.count[m])
+                   .append(MEASURES[m] + ".sum", d.sum[m]);
+                min.append(MEASURES[m] + ".min", d.min[m]);
+                max.append(MEASURES[m] + ".max", d.max[m]);
+            }
+            BasicDBObject update = new BasicDBObject("$inc", inc);
+            if (!min.isEmpty()) update.append("$min", min).append("$max", max);
+            op.add(new BasicDBObject("_id", new BasicDBObject("st", d.st)
+                                                 .append("day", new Date(d.day))),
+                   update);
+        }
+        op.execute();
+        days.clear();
+        last = null;
+    }
+
+}
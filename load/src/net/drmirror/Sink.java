@@ -0,0 +1,97 @@
+package net.drmirror;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.beust.jcommander.IStringConverter;
+import com.mongodb.DBCollection;
+
+/**
+ * Where the batches of a load go.  Normally that is the database, but
+ * the records can also be written to a file of concatenated BSON
+ * documents, which mongorestore can load later, or just be counted, to
+ * measure how fast the data can be read and parsed without a database.
+ *
+ * A sink is shared by all the threads of a load.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public interface Sink {
+
+    public static enum Type { MONGO, NULL, FILE }
+
+    public static class TypeConverter implements IStringConverter<Type> {
+        public Type convert (String data) {
+            return Enum.valueOf(Type.class, data);
+        }
+    }
+
+    /**
+     * Writes the records of a batch, and returns once they have arrived.
+     */
+    public void write (Batch b);
+
+    public void close() throws IOException;
+
+    /**
+     * Inserts the batches into a collection.
+     */
+    public static class Mongo implements Sink {
+        private DBCollection collection;
+        public Mongo (DBCollection collection) {
+            this.collection = collection;
+        }
+        public void write (Batch b) {
+            b.insertInto(collection);
+        }
+        public void close() {
+        }
+    }
+
+    /**
+     * Only counts the records and bytes of the batches.
+     */
+    public static class Null implements Sink {
+        private AtomicLong records = new AtomicLong();
+        private AtomicLong bytes = new AtomicLong();
+        public void write (Batch b) {
+            records.addAndGet(b.size());
+            bytes.addAndGet(b.bytes());
+        }
+        public void close() {
+            System.out.println(records.get() + " records, " + bytes.get() + " bytes, not written");
+        }
+    }
+
+    /**
+     * Appends the documents of the batches to a BSON file.  These are
+     * always RecordBatches, since DataLoader does not allow --bucket
+     * with this sink.  Each batch
+     * is on disk when write() returns, since its lines are entered into
+     * the Checkpoint next.
+     */
+    public static class BsonFile implements Sink {
+        private FileOutputStream file;
+        private OutputStream out;
+        public BsonFile (String filename) throws IOException {
+            file = new FileOutputStream (filename);
+            out = new BufferedOutputStream (file, 1024 * 1024);
+        }
+        public synchronized void write (Batch b) {
+            try {
+                ((RecordBatch)b).writeTo(out);
+                out.flush();
+                file.getFD().sync();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package net.drmirror;
+
+import java.nio.ByteBuffer;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * The station id and the position of the record that a RecordParser
+ * decoded last, kept for the records that follow.  A data file holds
+ * the observations of a single station, nearly always at the same
+ * position, so instead of concatenating a new id and building a new
+ * point for every line, the parser compares the raw bytes of the usaf,
+ * wban, latitude and longitude fields with those of the previous line,
+ * and only computes the values again when they differ.
+ *
+ * The point is shared by all the documents of a station, so it must
+ * not be modified.  For BsonBatch, the position is also kept in its
+ * encoded form, which is then copied as it is.
+ *
+ * Like the parser, a cache belongs to a single thread.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class StationCache {
+
+    // usaf and wban are at 4-15, latitude and longitude at 28-41
+    private static final int KEY_LENGTH = 11 + 13;
+
+    private byte[] key = new byte[KEY_LENGTH];
+    private boolean empty = true;
+
+    private String stationId;
+    private BasicDBObject point;
+    private byte[] encodedPoint;
+
+    /**
+     * Compares the station of the record at offset o with the one of
+     * the previous record.  If it is a different one, the cache now
+     * holds its key, but no values, and this returns false.
+     */
+    public boolean update (ByteBuffer b, int o) {
+        boolean same = !empty;
+        for (int i=0; i<11; i++) {
+            byte c = b.get(o+4+i);
+            if (key[i] != c) { key[i] = c; same = false; }
+        }
+        for (int i=0; i<13; i++) {
+            byte c = b.get(o+28+i);
+            if (key[11+i] != c) { key[11+i] = c; same = false; }
+        }
+        if (!same) {
+            empty = false;
+            stationId = null;
+            point = null;
+            encodedPoint = null;
+        }
+        return same;
+    }
+
+    public String getStationId() {
+        return stationId;
+    }
+
+    public void setStationId (String stationId) {
+        this.stationId = stationId;
+    }
+
+    /**
+     * Returns the point of the station, or null if there is no valid
+     * position or it hasn't been set yet.
+     */
+    public BasicDBObject getPoint() {
+        return point;
+    }
+
+    public void setPoint (BasicDBObject point) {
+        this.point = point;
+    }
+
+    /**
+     * Returns the "position" element of the station as BSON, including
+     * its type and name, or null if it hasn't been set yet.
+     */
+    public byte[] getEncodedPoint() {
+        return encodedPoint;
+    }
+
+    public void setEncodedPoint (byte[] encodedPoint) {
+        this.encodedPoint = encodedPoint;
+    }
+
+}
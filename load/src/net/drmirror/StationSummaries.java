@@ -0,0 +1,123 @@
+package net.drmirror;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+/**
+ * A summary of what was actually loaded for each station, computed
+ * while the data is parsed (see RecordParser.summarize()):
+ *
+ *   { _id: "u010230",
+ *     first: <earliest ts>, last: <latest ts>, n: <observations>,
+ *     west: -8.2, east: 5.1, south: 58.3, north: 62.0,
+ *     years: [ 1973, 1974, ... ] }
+ *
+ * The bounds cover the valid positions of the observations, and are
+ * missing if there are none.  The years are those with at least one
+ * observation; when a station's data comes from several files, they
+ * are not necessarily in order.  Questions like those of
+ * queries/longest-running-stations.js then become lookups in this
+ * collection rather than sorts of the whole data collection.
+ *
+ * Like the Rollups, the summaries of the records of a Batch are kept
+ * with the batch and flushed after it has been written, before its
+ * lines are entered into the Checkpoint, so that after a --resume they
+ * cover the same lines as the data.  The flush adds to what is in the
+ * collection, so a station whose records are spread over several
+ * batches, files or threads comes out right.  Since the threads all
+ * flush at the same time, two of them may upsert a new station at once;
+ * the one that loses is retried as an update (see Upserts).
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class StationSummaries {
+
+    public static class Summary {
+        private String st;
+        private long first, last;
+        private int n = 0;
+        private boolean hasPosition = false;
+        private int west, east, south, north;
+        private BitSet years = new BitSet();
+
+        private Summary (String st) {
+            this.st = st;
+        }
+
+        /**
+         * Adds an observation, with the position in thousandths of a
+         * degree, as in the data files.
+         */
+        public void add (long ts, int year, boolean validPosition, int lon, int lat) {
+            if (n == 0 || ts < first) first = ts;
+            if (n == 0 || ts > last) last = ts;
+            n++;
+            years.set(year);
+            if (validPosition) {
+                if (!hasPosition || lon < west) west = lon;
+                if (!hasPosition || lon > east) east = lon;
+                if (!hasPosition || lat < south) south = lat;
+                if (!hasPosition || lat > north) north = lat;
+                hasPosition = true;
+            }
+        }
+    }
+
+    private DBCollection collection;
+    private Map<String,Summary> summaries = new HashMap<String,Summary>();
+
+    // records usually come in order, so this is mostly the one we need
+    private Summary last = null;
+
+    public StationSummaries (DBCollection collection) {
+        this.collection = collection;
+    }
+
+    public Summary get (String st) {
+        if (last != null && last.st.equals(st)) return last;
+        Summary s = summaries.get(st);
+        if (s == null) {
+            s = new Summary(st);
+            summaries.put(st, s);
+        }
+        last = s;
+        return s;
+    }
+
+    /**
+     * Adds the summaries to the collection and starts over.
+     */
+    public void flush() {
+        if (summaries.isEmpty()) return;
+        Upserts op = new Upserts(collection);
+        for (Summary s : summaries.values()) {
+            BasicDBObject min = new BasicDBObject("first", new Date(s.first));
+            BasicDBObject max = new BasicDBObject("last", new Date(s.last));
+            if (s.hasPosition) {
+                min.append("west", s.west / 1000.0).append("south", s.south / 1000.0);
+                max.append("east", s.east / 1000.0).append("north", s.north / 1000.0);
+            }
+            List<Integer> years = new ArrayList<Integer>();
+            for (int y = s.years.nextSetBit(0); y >= 0; y = s.years.nextSetBit(y+1)) {
+                years.add(y);
+            }
+            op.add(new BasicDBObject("_id", s.st),
+                   new BasicDBObject("$min", min)
+                             .append("$max", max)
+                             .append("$inc", new BasicDBObject("n", s.n))
+                             .append("$addToSet", new BasicDBObject("years",
+                                                    new BasicDBObject("$each", years))));
+        }
+        op.execute();
+        summaries.clear();
+        last = null;
+    }
+
+}
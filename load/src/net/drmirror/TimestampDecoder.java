@@ -0,0 +1,49 @@
+package net.drmirror;
+
+import static net.drmirror.Util.NOT_A_NUMBER;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes timestamps of the form yyyyMMddHHmm, in UTC, into milliseconds
+ * since the epoch, without a Calendar.  The start of the day is computed
+ * arithmetically (see Util.daysSinceEpoch()) and kept for the next call,
+ * so that the records of a station on the same day, which come one after
+ * the other, only pay for the hour and the minute.
+ *
+ * A decoder is meant to be used by a single thread, such as the one that
+ * owns a RecordParser, and needs no locking.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class TimestampDecoder {
+
+    public static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+    // the date of the last timestamp, as the number yyyyMMdd, and its start
+    private int day = NOT_A_NUMBER;
+    private long dayMillis;
+
+    public long decode (ByteBuffer b, int i) {
+        int date = Util.parseInt(b, i, i+8);
+        if (date == NOT_A_NUMBER || date < 0)
+            throw new NumberFormatException("not a date: " + Util.string(b, i, i+8));
+        if (date != day) {
+            dayMillis = startOfDay(date);
+            day = date;
+        }
+        int hour = Util.parseInt(b, i+8, i+10);
+        int minute = Util.parseInt(b, i+10, i+12);
+        if (hour < 0 || minute < 0)
+            throw new NumberFormatException("not a time: " + Util.string(b, i+8, i+12));
+        return dayMillis + (hour * 60 + minute) * 60000L;
+    }
+
+    /**
+     * Returns the start of a day, given as the number yyyyMMdd, in UTC.
+     */
+    public static long startOfDay (int date) {
+        return Util.daysSinceEpoch(date / 10000, date / 100 % 100, date % 100) * MILLIS_PER_DAY;
+    }
+
+}
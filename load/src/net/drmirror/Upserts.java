@@ -0,0 +1,68 @@
+package net.drmirror;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * A list of upserts by _id that are sent as one unordered bulk write,
+ * as BucketBatch, Rollups and StationSummaries do.  When two threads
+ * upsert the same new _id at the same time, both may try to insert it,
+ * and the server rejects one of them as a duplicate key.  Since the
+ * document exists by then, those upserts are sent again as plain
+ * updates, which cannot fail that way.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class Upserts {
+
+    private static final int DUPLICATE_KEY = 11000, DUPLICATE_KEY_ON_UPDATE = 11001;
+
+    private DBCollection collection;
+    private List<DBObject> queries = new ArrayList<DBObject>();
+    private List<DBObject> updates = new ArrayList<DBObject>();
+
+    public Upserts (DBCollection collection) {
+        this.collection = collection;
+    }
+
+    public void add (DBObject query, DBObject update) {
+        queries.add(query);
+        updates.add(update);
+    }
+
+    public boolean isEmpty() {
+        return queries.isEmpty();
+    }
+
+    public void execute() {
+        if (queries.isEmpty()) return;
+        BulkWriteOperation op = collection.initializeUnorderedBulkOperation();
+        for (int i=0; i<queries.size(); i++) {
+            op.find(queries.get(i)).upsert().updateOne(updates.get(i));
+        }
+        List<Integer> lost;
+        try {
+            op.execute();
+            return;
+        } catch (BulkWriteException ex) {
+            if (ex.getWriteConcernError() != null) throw ex;
+            lost = new ArrayList<Integer>();
+            for (BulkWriteError e : ex.getWriteErrors()) {
+                if (e.getCode() != DUPLICATE_KEY && e.getCode() != DUPLICATE_KEY_ON_UPDATE) throw ex;
+                lost.add(e.getIndex());
+            }
+        }
+        op = collection.initializeUnorderedBulkOperation();
+        for (int i : lost) {
+            op.find(queries.get(i)).updateOne(updates.get(i));
+        }
+        op.execute();
+    }
+
+}
@@ -1,38 +1,124 @@
 package net.drmirror;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.TimeZone;
 
 import com.mongodb.BasicDBObject;
 
 public class Util {
 
-    private static Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-    
+    /**
+     * Parses a date of the form yyyyMMdd into the start of that day in
+     * UTC, or returns null if it is not a date.  This takes no lock, so
+     * any number of threads can use it at the same time.
+     */
     public static Date parseDate (String str) {
-        if (!str.matches("[0-9]+")) return null;
-        int year = Integer.parseInt (str.substring(0,4));
-        int month = Integer.parseInt(str.substring(4,6));
-        int day = Integer.parseInt(str.substring(6,8));
-        synchronized (calendar) {
-            calendar.set(year, month-1, day);
-            calendar.set(Calendar.HOUR, 0);
-            calendar.set(Calendar.MINUTE, 0);
-            calendar.set(Calendar.SECOND, 0);
-            calendar.set(Calendar.MILLISECOND, 0);
-            return calendar.getTime();
+        if (str.length() < 8) return null;
+        for (int i=0; i<str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') return null;
         }
+        return new Date(TimestampDecoder.startOfDay(parseInt(str, 0, 8)));
     }
     
     public static Integer parseInt(String str) {
-        if (!str.matches("[-+0-9]+")) return null;
-        if (str.startsWith("+")) {
-            return Integer.parseInt(str.substring(1));
-        } else {
-            return Integer.parseInt(str);
+        if (str.isEmpty()) return null;
+        for (int i=0; i<str.length(); i++) {
+            char c = str.charAt(i);
+            if ((c < '0' || c > '9') && c != '-' && c != '+') return null;
+        }
+        return Integer.parseInt(str);
+    }
+    
+    public static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+    
+    /**
+     * Parses the characters between start and end like parseInt(String),
+     * but without creating a substring.  Returns NOT_A_NUMBER if the
+     * characters are not a number.
+     */
+    public static int parseInt (String str, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end) {
+            char c = str.charAt(i);
+            if (c == '-') { negative = true; i++; }
+            else if (c == '+') i++;
+        }
+        if (i == end) return NOT_A_NUMBER;
+        int result = 0;
+        for (; i<end; i++) {
+            int digit = str.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return NOT_A_NUMBER;
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+    
+    /**
+     * Parses an optionally signed decimal number from the bytes between
+     * start and end, without creating a String.  Returns NOT_A_NUMBER if
+     * the bytes are not a number.
+     */
+    public static int parseInt (ByteBuffer b, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end) {
+            byte c = b.get(i);
+            if (c == '-') { negative = true; i++; }
+            else if (c == '+') i++;
+        }
+        if (i == end) return NOT_A_NUMBER;
+        int result = 0;
+        for (; i<end; i++) {
+            int digit = b.get(i) - '0';
+            if (digit < 0 || digit > 9) return NOT_A_NUMBER;
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+    
+    /**
+     * Returns the number of days between 1970-01-01 and the given date
+     * in the proleptic Gregorian calendar, computed without a Calendar.
+     */
+    public static long daysSinceEpoch (int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+    
+    public static long utcMillis (int year, int month, int day, int hour, int minute) {
+        return ((daysSinceEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60000L;
+    }
+    
+    private static final String[] codes = new String[128];
+    static {
+        for (char c=0; c<128; c++) codes[c] = String.valueOf(c).intern();
+    }
+    
+    /**
+     * Returns the single-character String at position i, which is shared
+     * rather than created anew for every call.
+     */
+    public static String code (ByteBuffer b, int i) {
+        byte c = b.get(i);
+        return c >= 0 ? codes[c] : new String(new byte[] { c }, StandardCharsets.ISO_8859_1);
+    }
+    
+    public static String string (ByteBuffer b, int start, int end) {
+        if (b.hasArray()) {
+            return new String(b.array(), b.arrayOffset() + start, end - start,
+                              StandardCharsets.ISO_8859_1);
         }
+        char[] c = new char[end - start];
+        for (int i=0; i<c.length; i++) c[i] = (char)(b.get(start + i) & 0xff);
+        return new String(c);
     }
     
     public static String generateStationId (String usaf, String wban, String lat, String lon) {
@@ -49,13 +135,21 @@ public class Util {
     
     public static BasicDBObject createPoint (Integer lon, Integer lat) {
         if (lon == null || lat == null) return null;
-        if (lon < -180000 || lon > 180000
-          || lat < -90000 || lat > 90000) return null; 
+        return createPoint ((int)lon, (int)lat);
+    }
+    
+    public static BasicDBObject createPoint (int lon, int lat) {
+        if (!isPoint(lon, lat)) return null;
         BasicDBObject result = new BasicDBObject("type", "Point");
         result.append ("coordinates", Arrays.asList(lon/1000.0, lat/1000.0));
         return result;
     }
     
+    public static boolean isPoint (int lon, int lat) {
+        return lon >= -180000 && lon <= 180000
+            && lat >= -90000 && lat <= 90000;
+    }
+    
     public static void main (String[] args) {
         BasicDBObject d = new BasicDBObject();
         d.append("a.b", 1);
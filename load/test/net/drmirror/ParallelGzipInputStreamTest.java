@@ -0,0 +1,175 @@
+package net.drmirror;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that ParallelGzipInputStream returns the same bytes as
+ * GZIPInputStream, in particular when a file is split into parts and
+ * the search for the members finds things that only look like them.
+ *
+ * @author: Andre Spiegel <andre.spiegel@mongodb.com>
+ */
+public class ParallelGzipInputStreamTest {
+
+    // small enough that the test files are split into several parts
+    private static final long PART_SIZE = 64 * 1024;
+
+    private Random random = new Random(1);
+    private File file;
+
+    @After
+    public void delete() {
+        if (file != null) file.delete();
+    }
+
+    @Test
+    public void singleMember() throws IOException {
+        write (member(text(2000000), Deflater.DEFAULT_COMPRESSION));
+        assertEquals(1, compare(4));
+    }
+
+    @Test
+    public void manyMembers() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i=0; i<37; i++) out.write(member(text(50000 + random.nextInt(100000)), Deflater.DEFAULT_COMPRESSION));
+        write (out.toByteArray());
+        assertTrue(compare(4) > 1);
+        assertEquals(1, compare(1));
+    }
+
+    @Test
+    public void emptyMembers() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i=0; i<37; i++) {
+            out.write(member(new byte[0], Deflater.DEFAULT_COMPRESSION));
+            out.write(member(text(100000), Deflater.DEFAULT_COMPRESSION));
+        }
+        write (out.toByteArray());
+        assertTrue(compare(4) > 1);
+    }
+
+    /**
+     * The members are stored rather than compressed, and what they store
+     * is full of gzip headers and of complete gzip members, which the
+     * search for the start of a part will take for real ones.
+     */
+    @Test
+    public void falseHeaders() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i=0; i<20; i++) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            for (int k=0; k<40; k++) {
+                data.write(text(1000 + random.nextInt(2000)));
+                data.write(k % 2 == 0 ? member(text(5000), Deflater.DEFAULT_COMPRESSION)
+                                      : new byte[] { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff });
+            }
+            out.write(member(data.toByteArray(), Deflater.NO_COMPRESSION));
+        }
+        write (out.toByteArray());
+        assertTrue(compare(8) > 1);
+    }
+
+    @Test
+    public void trailingGarbage() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i=0; i<10; i++) out.write(member(text(100000), Deflater.DEFAULT_COMPRESSION));
+        out.write(text(1000));
+        write (out.toByteArray());
+        compare(4);
+    }
+
+    /**
+     * Reads the file with both streams, checks that the data is the
+     * same, and returns the number of parts it was split into.
+     */
+    private int compare (int threads) throws IOException {
+        byte[] expected = readAll(new GZIPInputStream(new FileInputStream(file)));
+        ParallelGzipInputStream in = new ParallelGzipInputStream(file.getPath(), threads, PART_SIZE);
+        int parts = in.parts();
+        assertArrayEquals(expected, readAll(in));
+        return parts;
+    }
+
+    private byte[] readAll (InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7919];
+        try {
+            while (true) {
+                int n = in.read(buf, 0, 1 + random.nextInt(buf.length));
+                if (n < 0) break;
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private void write (byte[] data) throws IOException {
+        file = File.createTempFile("pgz", ".gz");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns lines of text of about the given length, which compress
+     * about as well as the data files.
+     */
+    private byte[] text (int length) {
+        StringBuilder b = new StringBuilder();
+        while (b.length() < length) {
+            b.append(String.format("%04d%06d99999%08d%04d4+%05d-%06dFM-12\n", random.nextInt(500),
+                                   random.nextInt(1000000), 20130101 + random.nextInt(365),
+                                   random.nextInt(2400), random.nextInt(90000), random.nextInt(180000)));
+        }
+        return b.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns a gzip member with the given data.
+     */
+    private static byte[] member (byte[] data, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff }, 0, 10);
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[65536];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeInt(out, (int)crc.getValue());
+        writeInt(out, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInt (ByteArrayOutputStream out, int value) {
+        for (int i=0; i<4; i++) out.write(value >>> (8 * i));
+    }
+
+}
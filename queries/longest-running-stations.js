@@ -12,3 +12,11 @@ printjson(db.data.aggregate([{
         end:   {$last: '$ts'}
     }
 }]));
+
+/*
+ * The same from the station summaries, if the data was loaded with
+ * DataLoader --summaries summary; this reads one document per station
+ * instead of sorting the whole data collection.
+ *
+ * printjson(db.summary.find({}, {first: 1, last: 1}).toArray());
+ */
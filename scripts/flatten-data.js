@@ -1,5 +1,9 @@
 /*
  * Convert ncdc.data collection into something flat that Monary can query.
+ *
+ * DataLoader can produce the same records while loading, with
+ * --flatten flattened (or --flattenFile for a BSON file), for all
+ * years rather than only those after the date below.
  */
 
 print(ISODate());
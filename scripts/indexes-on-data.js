@@ -1,9 +1,16 @@
 /*
  * Run on the 'ncdc' database.
+ *
+ * DataLoader builds these indexes itself at the end of a load (see
+ * DataLoader.DATA_INDEXES and --indexes); this is for data that was
+ * loaded some other way, or with --indexes NONE.
  */
 print(ISODate());
 print('position 2dsphere index');
 db.data.createIndex({ts: 1, position: '2dsphere'});
 
+print('station index');
+db.data.createIndex({st: 1, ts: 1});
+
 print('done');
 print(ISODate());